@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.contacts.sim.benchmark;
+
+import com.android.contacts.sim.SimChangePlanner;
+import com.android.contacts.sim.SimContactsDiff;
+import com.android.contacts.sim.SimRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Diff planning of a known card: matching the ADN records with the stored
+ * raw contacts and planning the data row changes of every edited one, as
+ * the reconcile step of SimContactsService does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiffPlanningBenchmark {
+    @Param({"50", "250", "500", "5000"})
+    public int records;
+
+    @Param({"0.0", "0.5", "1.0"})
+    public double fieldDensity;
+
+    @Param({"0.0", "0.05", "0.5"})
+    public double changeRatio;
+
+    private ArrayList<SimRecord> mRecords;
+    private ArrayList<SimContactsDiff.DatabaseRow> mRows;
+
+    private static class CountingSink implements SimChangePlanner.Sink {
+        int changes;
+
+        @Override
+        public void onChange(int field, int action, String value) {
+            changes += action + 1;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        mRecords = SimRecordGenerator.generate(records, fieldDensity, 42);
+        mRows = SimRecordGenerator.storedRows(mRecords, changeRatio, 7);
+    }
+
+    @Benchmark
+    public SimContactsDiff computeDiff() {
+        return SimContactsDiff.compute(mRecords, mRows);
+    }
+
+    /** The diff followed by the change plan of every update. */
+    @Benchmark
+    public int planChanges(Blackhole blackhole) {
+        final SimContactsDiff diff = SimContactsDiff.compute(mRecords, mRows);
+        final CountingSink sink = new CountingSink();
+        for (SimContactsDiff.Update update : diff.updates) {
+            SimChangePlanner.plan(update.row.record, update.record, sink);
+        }
+        blackhole.consume(diff);
+        return sink.changes;
+    }
+}
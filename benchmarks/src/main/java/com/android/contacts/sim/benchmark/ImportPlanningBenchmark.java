@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.contacts.sim.benchmark;
+
+import com.android.contacts.sim.SimBatchPlanner;
+import com.android.contacts.sim.SimRecord;
+import com.android.contacts.sim.SimValueTokenizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Import planning of a new card: reading the ADN rows into records and
+ * cutting them into provider batches, as SimContactsImporter does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImportPlanningBenchmark {
+    // The limits of SimContactsImporter.
+    private static final int MAX_OPERATIONS_PER_BATCH = 400;
+    private static final int MAX_BYTES_PER_BATCH = 256 * 1024;
+
+    @Param({"50", "250", "500", "5000"})
+    public int records;
+
+    @Param({"0.0", "0.5", "1.0"})
+    public double fieldDensity;
+
+    private ArrayList<SimRecord> mRecords;
+    private String[][] mRows;
+
+    @Setup
+    public void setUp() {
+        mRecords = SimRecordGenerator.generate(records, fieldDensity, 42);
+        mRows = new String[mRecords.size()][];
+        for (int i = 0; i < mRows.length; i++) {
+            final SimRecord record = mRecords.get(i);
+            mRows[i] = new String[] {
+                String.valueOf(record.index), record.name, record.number,
+                record.emails, record.anrs,
+            };
+        }
+    }
+
+    /** Cursor rows to records, with the checksums the raw contacts are tagged with. */
+    @Benchmark
+    public int readRecords() {
+        int hash = 0;
+        for (String[] row : mRows) {
+            final SimRecord record = new SimRecord(SimRecord.parseIndex(row[0]), row[1], row[2],
+                    SimRecord.normalizeList(row[3]), SimRecord.normalizeList(row[4]));
+            hash += record.getChecksum().hashCode();
+        }
+        return hash;
+    }
+
+    /** @return the number of batches, plus the operations of all of them */
+    @Benchmark
+    public int planBatches() {
+        final SimBatchPlanner planner =
+                new SimBatchPlanner(MAX_OPERATIONS_PER_BATCH, MAX_BYTES_PER_BATCH);
+        final SimValueTokenizer tokenizer = new SimValueTokenizer();
+        int batches = 0;
+        int operations = 0;
+        for (SimRecord record : mRecords) {
+            if (planner.needsFlush(record.name, record.number, record.emails, record.anrs)) {
+                batches++;
+                planner.reset();
+            }
+            planner.add();
+            operations += 3;
+            tokenizer.reset(record.anrs);
+            while (tokenizer.next()) {
+                operations++;
+            }
+            tokenizer.reset(record.emails);
+            while (tokenizer.next()) {
+                operations++;
+            }
+        }
+        return batches + 1 + operations;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.contacts.sim.benchmark;
+
+import com.android.contacts.sim.SimContactsDiff;
+import com.android.contacts.sim.SimRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds deterministic SIM phonebooks and the stored raw contacts that go
+ * with them, so every benchmark run diffs the same data.
+ */
+public final class SimRecordGenerator {
+    private static final String[] DOMAINS = new String[] {
+        "example.com", "mail.example.org", "example.net",
+    };
+
+    private SimRecordGenerator() {
+    }
+
+    /**
+     * Generates the ADN records of a card.
+     *
+     * @param density share of the records with ANRs, and separately with
+     *        emails; a third of those carry two entries
+     */
+    public static ArrayList<SimRecord> generate(int count, double density, long seed) {
+        final Random random = new Random(seed);
+        final ArrayList<SimRecord> records = new ArrayList<SimRecord>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(new SimRecord(i + 1, "Contact " + i, number(random),
+                    random.nextDouble() < density ? emails(random, i) : null,
+                    random.nextDouble() < density ? anrs(random) : null));
+        }
+        return records;
+    }
+
+    /**
+     * Derives the stored raw contacts of a card. A {@code changeRatio}
+     * share of the records was changed on the card since the last pass:
+     * half of them were edited, a quarter are new on the card and a quarter
+     * were deleted from it, which leaves a stale raw contact behind.
+     */
+    public static ArrayList<SimContactsDiff.DatabaseRow> storedRows(List<SimRecord> records,
+            double changeRatio, long seed) {
+        final Random random = new Random(seed);
+        final ArrayList<SimContactsDiff.DatabaseRow> rows =
+                new ArrayList<SimContactsDiff.DatabaseRow>(records.size());
+        long rawContactId = 1;
+        for (SimRecord record : records) {
+            if (random.nextDouble() >= changeRatio) {
+                rows.add(row(rawContactId++, record));
+                continue;
+            }
+            final double change = random.nextDouble();
+            if (change < 0.5) {
+                rows.add(row(rawContactId++, edit(record, random)));
+            } else if (change < 0.75) {
+                // New on the card, nothing stored yet.
+            } else {
+                rows.add(row(rawContactId++, record));
+                rows.add(row(rawContactId++, new SimRecord(-1, "Removed " + rawContactId,
+                        number(random), null, null)));
+            }
+        }
+        return rows;
+    }
+
+    private static SimContactsDiff.DatabaseRow row(long rawContactId, SimRecord record) {
+        return new SimContactsDiff.DatabaseRow(rawContactId, rawContactId, record);
+    }
+
+    /** Changes one field of the record, the way a user edit on the card would. */
+    private static SimRecord edit(SimRecord record, Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return new SimRecord(record.index, record.name + " Jr", record.number,
+                        record.emails, record.anrs);
+            case 1:
+                return new SimRecord(record.index, record.name, number(random),
+                        record.emails, record.anrs);
+            case 2:
+                return new SimRecord(record.index, record.name, record.number,
+                        record.emails, anrs(random));
+            default:
+                return new SimRecord(record.index, record.name, record.number,
+                        emails(random, record.index), record.anrs);
+        }
+    }
+
+    private static String number(Random random) {
+        final StringBuilder number = new StringBuilder("+86138");
+        for (int i = 0; i < 8; i++) {
+            number.append((char) ('0' + random.nextInt(10)));
+        }
+        return number.toString();
+    }
+
+    private static String anrs(Random random) {
+        return random.nextInt(3) == 0 ? number(random) + "," + number(random) : number(random);
+    }
+
+    private static String emails(Random random, int id) {
+        final String first = "user" + id + "@" + DOMAINS[random.nextInt(DOMAINS.length)];
+        return random.nextInt(3) == 0 ? first + ",alt" + id + "@" + DOMAINS[0] : first;
+    }
+}
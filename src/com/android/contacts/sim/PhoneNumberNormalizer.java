@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.sim;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Normalizes the phone numbers written to and compared against the SIM.
+ *
+ * The canonical form keeps only dialable characters, like
+ * {@code PhoneNumberUtils.stripSeparators}. The match key holds the last
+ * {@link #MIN_MATCH} digits, so "+1 555-0100" and "15550100" compare equal
+ * even though the SIM and the contacts provider store them differently.
+ * Results are kept in a small LRU cache shared by the ICC write path and the
+ * resync diff, because the same numbers are normalized on every pass.
+ */
+public final class PhoneNumberNormalizer {
+    /** Number of trailing digits compared, as in {@code PhoneNumberUtils}. */
+    static final int MIN_MATCH = 7;
+    private static final int MAX_CACHED_NUMBERS = 512;
+
+    private static final class Entry {
+        final String canonical;
+        final String digits;
+        final String matchKey;
+
+        Entry(String canonical, String digits) {
+            this.canonical = canonical;
+            this.digits = digits;
+            this.matchKey = digits.length() > MIN_MATCH
+                    ? digits.substring(digits.length() - MIN_MATCH) : digits;
+        }
+    }
+
+    private static final LinkedHashMap<String, Entry> sCache =
+            new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_CACHED_NUMBERS;
+                }
+            };
+
+    private PhoneNumberNormalizer() {
+    }
+
+    /**
+     * Strips the separators from a number, or from a comma separated list
+     * of numbers.
+     *
+     * @return the canonical form, or null for a null number
+     */
+    public static String canonicalize(String number) {
+        return number == null ? null : lookup(number).canonical;
+    }
+
+    /**
+     * Returns true if both numbers are the same after normalization, or if
+     * one only adds a prefix, such as a country code, to the digits of the
+     * other and their last {@link #MIN_MATCH} digits agree.
+     */
+    public static boolean sameNumber(String first, String second) {
+        final Entry a = lookup(first == null ? "" : first);
+        final Entry b = lookup(second == null ? "" : second);
+        if (a.canonical.equals(b.canonical) || a.digits.equals(b.digits)) {
+            return true;
+        }
+        if (!a.matchKey.equals(b.matchKey) || a.matchKey.length() < MIN_MATCH) {
+            return false;
+        }
+        return a.digits.length() > b.digits.length()
+                ? a.digits.endsWith(b.digits) : b.digits.endsWith(a.digits);
+    }
+
+    /** Compares two comma separated number lists entry by entry. */
+    public static boolean sameNumberList(String first, String second) {
+        final SimValueTokenizer a = new SimValueTokenizer().reset(first);
+        final SimValueTokenizer b = new SimValueTokenizer().reset(second);
+        while (true) {
+            final boolean hasA = a.next();
+            final boolean hasB = b.next();
+            if (!hasA || !hasB) {
+                return hasA == hasB;
+            }
+            if (!sameNumber(a.value(), b.value())) {
+                return false;
+            }
+        }
+    }
+
+    private static Entry lookup(String number) {
+        synchronized (sCache) {
+            Entry entry = sCache.get(number);
+            if (entry == null) {
+                entry = normalize(number);
+                sCache.put(number, entry);
+            }
+            return entry;
+        }
+    }
+
+    private static Entry normalize(String number) {
+        final int length = number.length();
+        final StringBuilder canonical = new StringBuilder(length);
+        final StringBuilder digits = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            final char c = number.charAt(i);
+            final int digit = Character.digit(c, 10);
+            if (digit != -1) {
+                canonical.append(digit);
+                digits.append(digit);
+            } else if (isNonSeparator(c)) {
+                canonical.append(c);
+            }
+        }
+        return new Entry(canonical.toString(), digits.toString());
+    }
+
+    private static boolean isNonSeparator(char c) {
+        return c == '*' || c == '#' || c == '+' || c == 'N' || c == ';' || c == ',';
+    }
+}
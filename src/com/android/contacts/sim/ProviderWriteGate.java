@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.contacts.sim;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes the contacts provider batches of all SIM sync workers.
+ *
+ * The cards of a dual-SIM device are read in parallel, but their writes
+ * would only contend for the same provider transaction lock. Instead the
+ * workers take turns through a fair lock, so the batches of both
+ * subscriptions interleave in arrival order and neither starves the other.
+ *
+ * The gate also paces the writers by the latency of their batches, scaled
+ * to the suggested batch size. While batches finish quickly that size grows
+ * step by step; a slow batch, usually the provider serving the Contacts or
+ * Dialer UI at the same time, halves it and makes the next writer wait
+ * before it starts, with the wait doubling as long as batches stay slow.
+ * Batches far smaller than the suggested size, such as the aggregation
+ * update that ends an import, are not used to judge it.
+ */
+public class ProviderWriteGate {
+    private static final String TAG = "ProviderWriteGate";
+    private static final boolean DBG = Log.isLoggable(TAG, Log.DEBUG);
+
+    // A batch taking longer than this holds foreground queries up visibly.
+    private static final long TARGET_BATCH_MS = 100;
+    private static final int MIN_OPERATIONS = 50;
+    // ContactsProvider refuses batches larger than 500 operations.
+    private static final int MAX_OPERATIONS = 500;
+    private static final int OPERATIONS_STEP = 25;
+    // Smaller shares of the limit are dominated by the fixed cost of a batch.
+    private static final int MIN_SAMPLE_SHARE = 4;
+    private static final long MIN_BACKOFF_MS = 20;
+    private static final long MAX_BACKOFF_MS = 1000;
+
+    private static final ReentrantLock sLock = new ReentrantLock(true);
+
+    // Guarded by sLock.
+    private static int sOperationLimit = MAX_OPERATIONS;
+    private static long sBackoffMs = 0;
+    private static long sLastBatchMs = 0;
+    private static int sSlowBatches = 0;
+
+    private ProviderWriteGate() {
+    }
+
+    public static ContentProviderResult[] applyBatch(ContentResolver resolver,
+            ArrayList<ContentProviderOperation> operations)
+            throws RemoteException, OperationApplicationException {
+        backOff();
+        sLock.lock();
+        try {
+            final long start = SystemClock.elapsedRealtime();
+            try {
+                return resolver.applyBatch(ContactsContract.AUTHORITY, operations);
+            } finally {
+                onBatchApplied(operations.size(), SystemClock.elapsedRealtime() - start);
+            }
+        } finally {
+            sLock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many operations the next batch should hold at most.
+     *
+     * @param ceiling the largest batch the caller can build
+     */
+    public static int getOperationLimit(int ceiling) {
+        sLock.lock();
+        try {
+            return Math.min(ceiling, sOperationLimit);
+        } finally {
+            sLock.unlock();
+        }
+    }
+
+    public static String getState() {
+        sLock.lock();
+        try {
+            return "limit=" + sOperationLimit + " backoff=" + sBackoffMs + "ms lastBatch="
+                    + sLastBatchMs + "ms slowBatches=" + sSlowBatches;
+        } finally {
+            sLock.unlock();
+        }
+    }
+
+    private static void onBatchApplied(int operations, long elapsed) {
+        sLastBatchMs = elapsed;
+        if (operations == 0 || operations * MIN_SAMPLE_SHARE < sOperationLimit) {
+            return;
+        }
+        // What a batch of the full limit would take at this pace.
+        final long projected = elapsed * sOperationLimit / operations;
+        if (projected > TARGET_BATCH_MS) {
+            sSlowBatches++;
+            sOperationLimit = Math.max(MIN_OPERATIONS, sOperationLimit / 2);
+            sBackoffMs = Math.min(MAX_BACKOFF_MS, Math.max(MIN_BACKOFF_MS, sBackoffMs * 2));
+            log("slow batch of " + operations + " operations in " + elapsed
+                    + "ms, limit " + sOperationLimit + ", back off " + sBackoffMs + "ms");
+        } else if (projected * 2 < TARGET_BATCH_MS) {
+            sOperationLimit = Math.min(MAX_OPERATIONS, sOperationLimit + OPERATIONS_STEP);
+            sBackoffMs = sBackoffMs / 2 < MIN_BACKOFF_MS ? 0 : sBackoffMs / 2;
+        }
+    }
+
+    /** Sleeps outside the lock so the wait leaves the provider to others. */
+    private static void backOff() {
+        final long backoff;
+        sLock.lock();
+        try {
+            backoff = sBackoffMs;
+        } finally {
+            sLock.unlock();
+        }
+        if (backoff > 0) {
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void log(String msg) {
+        if (DBG) Log.d(TAG, msg);
+    }
+}
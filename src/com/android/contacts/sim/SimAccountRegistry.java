@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.sim;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.OnAccountsUpdateListener;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * In-process view of the SIM and phone accounts.
+ *
+ * The accounts are read from {@link AccountManager} once and then kept up to
+ * date by {@link OnAccountsUpdateListener}, so the SIM event path can check
+ * and look up accounts without a binder call each time.
+ */
+public class SimAccountRegistry {
+    private static final String TAG = "SimAccountRegistry";
+    private static final boolean DBG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private final AccountManager mAccountManager;
+    private final HashMap<String, Account> mAccounts = new HashMap<String, Account>();
+    private boolean mStarted;
+
+    private final OnAccountsUpdateListener mListener = new OnAccountsUpdateListener() {
+        @Override
+        public void onAccountsUpdated(Account[] accounts) {
+            synchronized (SimAccountRegistry.this) {
+                mAccounts.clear();
+                for (Account account : accounts) {
+                    if (isTracked(account.type)) {
+                        mAccounts.put(key(account.name, account.type), account);
+                    }
+                }
+                log("accounts updated: " + mAccounts.values());
+            }
+        }
+    };
+
+    public SimAccountRegistry(AccountManager accountManager) {
+        mAccountManager = accountManager;
+    }
+
+    /**
+     * Loads the accounts and starts listening for changes on the given
+     * handler's thread.
+     */
+    public void start(Handler handler) {
+        synchronized (this) {
+            if (mStarted) {
+                return;
+            }
+            mStarted = true;
+            load(SimContactsConstants.ACCOUNT_TYPE_SIM);
+            load(SimContactsConstants.ACCOUNT_TYPE_PHONE);
+        }
+        mAccountManager.addOnAccountsUpdatedListener(mListener, handler, false);
+    }
+
+    public void stop() {
+        synchronized (this) {
+            if (!mStarted) {
+                return;
+            }
+            mStarted = false;
+        }
+        mAccountManager.removeOnAccountsUpdatedListener(mListener);
+    }
+
+    public synchronized boolean contains(String name, String type) {
+        return name != null && mAccounts.containsKey(key(name, type));
+    }
+
+    /** Returns the account with the given name and type, or null. */
+    public synchronized Account get(String name, String type) {
+        return name == null ? null : mAccounts.get(key(name, type));
+    }
+
+    public synchronized Account[] getAccounts(String type) {
+        final ArrayList<Account> result = new ArrayList<Account>(2);
+        for (Account account : mAccounts.values()) {
+            if (account.type.equals(type)) {
+                result.add(account);
+            }
+        }
+        return result.toArray(new Account[result.size()]);
+    }
+
+    /**
+     * Forgets an account right away after asking {@link AccountManager} to
+     * remove it, instead of waiting for the update callback.
+     */
+    public synchronized void onRemoved(Account account) {
+        mAccounts.remove(key(account.name, account.type));
+    }
+
+    private void load(String type) {
+        for (Account account : mAccountManager.getAccountsByType(type)) {
+            mAccounts.put(key(account.name, account.type), account);
+        }
+    }
+
+    private static boolean isTracked(String type) {
+        return SimContactsConstants.ACCOUNT_TYPE_SIM.equals(type)
+                || SimContactsConstants.ACCOUNT_TYPE_PHONE.equals(type);
+    }
+
+    private static String key(String name, String type) {
+        return type + '/' + name;
+    }
+
+    private static void log(String msg) {
+        if (DBG) Log.d(TAG, msg);
+    }
+}
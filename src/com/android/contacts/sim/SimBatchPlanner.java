@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.sim;
+
+/**
+ * Decides where the batches of a SIM import end.
+ *
+ * Each record costs one raw contact insert, a name row, a number row and one
+ * row per ANR and email. The planner adds those costs up and tells the caller
+ * to flush before a record would push the pending batch past either limit, so
+ * a contact is never split across two batches. It only does arithmetic, which
+ * keeps import planning measurable without a contacts provider.
+ */
+public class SimBatchPlanner {
+    // Rough parcel size of one insert operation without its string values.
+    static final int OPERATION_OVERHEAD_BYTES = 160;
+
+    private int mMaxOperations;
+    private final int mMaxBytes;
+
+    private int mOperations = 0;
+    private int mBytes = 0;
+    private int mLastOperations = 0;
+    private int mLastBytes = 0;
+
+    public SimBatchPlanner(int maxOperations, int maxBytes) {
+        mMaxOperations = maxOperations;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Measures the record and checks it against the pending batch. The
+     * measured cost is kept for the following {@link #add()}.
+     *
+     * @return true if the pending batch has to be flushed before the record
+     */
+    public boolean needsFlush(String name, String number, String emails, String anrs) {
+        mLastOperations = 3;
+        mLastBytes = 3 * OPERATION_OVERHEAD_BYTES + sizeOf(name) + sizeOf(number);
+        measureList(anrs);
+        measureList(emails);
+        return mOperations > 0 && (mOperations + mLastOperations > mMaxOperations
+                || mBytes + mLastBytes > mMaxBytes);
+    }
+
+    /** Adds the record measured by the last {@link #needsFlush} to the batch. */
+    public void add() {
+        mOperations += mLastOperations;
+        mBytes += mLastBytes;
+    }
+
+    /** Changes the operation limit; takes effect with the next record. */
+    public void setMaxOperations(int maxOperations) {
+        mMaxOperations = maxOperations;
+    }
+
+    public void reset() {
+        mOperations = 0;
+        mBytes = 0;
+    }
+
+    public int getOperationCount() {
+        return mOperations;
+    }
+
+    public int getByteCount() {
+        return mBytes;
+    }
+
+    private void measureList(String list) {
+        if (list == null) {
+            return;
+        }
+        final int length = list.length();
+        int start = 0;
+        while (start <= length) {
+            int end = list.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                mLastOperations++;
+                mLastBytes += OPERATION_OVERHEAD_BYTES + (end - start) * 2;
+            }
+            start = end + 1;
+        }
+    }
+
+    private static int sizeOf(String value) {
+        return value == null ? 0 : value.length() * 2;
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.sim;
+
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.util.Log;
+
+import com.android.internal.telephony.GsmAlphabet;
+import com.android.internal.telephony.IIccPhoneBook;
+import com.android.internal.telephony.uicc.IccConstants;
+
+/**
+ * Keeps the ADN capacity of one subscription in memory: total and free
+ * slots, free email and ANR slots, and the longest name and number a slot
+ * can hold.
+ *
+ * The index is loaded from the phonebook service once the SIM has been read,
+ * and every ICC write through {@link SimContactsOperation} keeps it current,
+ * so a write that cannot fit is rejected without a round trip to the modem.
+ * Until it is loaded the index accepts everything and leaves the decision to
+ * the card.
+ */
+public class SimCapacityIndex {
+    private static final String TAG = "SimCapacityIndex";
+    private static final boolean DBG = Log.isLoggable(TAG, Log.DEBUG);
+
+    public static final int RESULT_OK = 0;
+    public static final int RESULT_NO_FREE_SLOT = 1;
+    public static final int RESULT_NO_EMAIL_SLOT = 2;
+    public static final int RESULT_NO_ANR_SLOT = 3;
+    public static final int RESULT_NAME_TOO_LONG = 4;
+    public static final int RESULT_NUMBER_TOO_LONG = 5;
+
+    // An ADN record stores the dialling number in 10 BCD bytes.
+    private static final int MAX_NUMBER_LENGTH = 20;
+    // Bytes of an ADN record that follow the alpha tag.
+    private static final int ADN_FOOTER_BYTES = 14;
+
+    private static final SimCapacityIndex[] sIndexes =
+            new SimCapacityIndex[SimContactsConstants.SUB_2 + 1];
+
+    private final int mSubscription;
+    private boolean mLoaded;
+    private int mTotalSlots;
+    private int mUsedSlots;
+    private int mFreeEmails;
+    private int mFreeAnrs;
+    private int mMaxNameBytes;
+
+    public static synchronized SimCapacityIndex getInstance(int subscription) {
+        if (subscription < 0 || subscription >= sIndexes.length) {
+            throw new IllegalArgumentException("invalid subscription " + subscription);
+        }
+        if (sIndexes[subscription] == null) {
+            sIndexes[subscription] = new SimCapacityIndex(subscription);
+        }
+        return sIndexes[subscription];
+    }
+
+    private SimCapacityIndex(int subscription) {
+        mSubscription = subscription;
+    }
+
+    /**
+     * Reads the capacity of the card from the phonebook service.
+     *
+     * @param subId subscription id of the card
+     * @param usedSlots number of ADN records just read from the card
+     */
+    public void load(int subId, int usedSlots) {
+        final IIccPhoneBook phoneBook = IIccPhoneBook.Stub.asInterface(
+                ServiceManager.getService("simphonebook"));
+        if (phoneBook == null || subId < 0) {
+            invalidate();
+            return;
+        }
+        try {
+            final int[] sizes = phoneBook.getAdnRecordsSizeForSubscriber(subId,
+                    IccConstants.EF_ADN);
+            final int totalSlots = phoneBook.getAdnCountUsingSubId(subId);
+            final int freeEmails = phoneBook.getSpareEmailCountUsingSubId(subId);
+            final int freeAnrs = phoneBook.getSpareAnrCountUsingSubId(subId);
+            if (sizes == null || sizes.length < 3 || sizes[0] <= ADN_FOOTER_BYTES) {
+                // Without the record size no name length can be checked.
+                Log.w(TAG, "no ADN record size at sub " + mSubscription
+                        + ", leave the checks to the card");
+                invalidate();
+                return;
+            }
+            synchronized (this) {
+                mTotalSlots = totalSlots > 0 ? totalSlots : sizes[2];
+                mMaxNameBytes = sizes[0] - ADN_FOOTER_BYTES;
+                mUsedSlots = usedSlots;
+                mFreeEmails = freeEmails;
+                mFreeAnrs = freeAnrs;
+                mLoaded = mTotalSlots > 0;
+                log("loaded " + this);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            invalidate();
+        } catch (SecurityException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            invalidate();
+        }
+    }
+
+    /** Forgets the capacity, for example when the card is removed. */
+    public synchronized void invalidate() {
+        mLoaded = false;
+    }
+
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    public synchronized int getTotalSlots() {
+        return mLoaded ? mTotalSlots : -1;
+    }
+
+    public synchronized int getFreeSlots() {
+        return mLoaded ? Math.max(0, mTotalSlots - mUsedSlots) : -1;
+    }
+
+    public synchronized int getFreeEmailSlots() {
+        return mLoaded ? mFreeEmails : -1;
+    }
+
+    public synchronized int getFreeAnrSlots() {
+        return mLoaded ? mFreeAnrs : -1;
+    }
+
+    /** Returns the longest name that fits, counted in bytes of the alpha tag. */
+    public synchronized int getMaxNameLength() {
+        return mLoaded ? mMaxNameBytes : -1;
+    }
+
+    public int getMaxNumberLength() {
+        return MAX_NUMBER_LENGTH;
+    }
+
+    /** Checks whether a new record fits on the card. */
+    public synchronized int checkInsert(SimRecord record) {
+        if (mLoaded && mUsedSlots >= mTotalSlots) {
+            return RESULT_NO_FREE_SLOT;
+        }
+        return checkContent(null, record);
+    }
+
+    /** Checks whether a record can be replaced by new content. */
+    public synchronized int checkUpdate(SimRecord before, SimRecord after) {
+        return checkContent(before, after);
+    }
+
+    public synchronized void onInserted(SimRecord record) {
+        mUsedSlots++;
+        mFreeEmails -= countValues(record.emails);
+        mFreeAnrs -= countValues(record.anrs);
+    }
+
+    public synchronized void onUpdated(SimRecord before, SimRecord after) {
+        mFreeEmails += countValues(before.emails) - countValues(after.emails);
+        mFreeAnrs += countValues(before.anrs) - countValues(after.anrs);
+    }
+
+    public synchronized void onDeleted(SimRecord record) {
+        mUsedSlots = Math.max(0, mUsedSlots - 1);
+        mFreeEmails += countValues(record.emails);
+        mFreeAnrs += countValues(record.anrs);
+    }
+
+    private int checkContent(SimRecord before, SimRecord after) {
+        if (!mLoaded) {
+            return RESULT_OK;
+        }
+        if (nameBytes(after.name) > mMaxNameBytes) {
+            return RESULT_NAME_TOO_LONG;
+        }
+        if (digitCount(after.number) > MAX_NUMBER_LENGTH) {
+            return RESULT_NUMBER_TOO_LONG;
+        }
+        final int newEmails = countValues(after.emails)
+                - (before == null ? 0 : countValues(before.emails));
+        if (newEmails > 0 && newEmails > mFreeEmails) {
+            return RESULT_NO_EMAIL_SLOT;
+        }
+        final int newAnrs = countValues(after.anrs)
+                - (before == null ? 0 : countValues(before.anrs));
+        if (newAnrs > 0 && newAnrs > mFreeAnrs) {
+            return RESULT_NO_ANR_SLOT;
+        }
+        return RESULT_OK;
+    }
+
+    /** Describes a result of {@link #checkInsert} or {@link #checkUpdate}. */
+    public static String resultToString(int result) {
+        switch (result) {
+            case RESULT_OK:
+                return "ok";
+            case RESULT_NO_FREE_SLOT:
+                return "no free slot";
+            case RESULT_NO_EMAIL_SLOT:
+                return "no free email slot";
+            case RESULT_NO_ANR_SLOT:
+                return "no free anr slot";
+            case RESULT_NAME_TOO_LONG:
+                return "name too long";
+            case RESULT_NUMBER_TOO_LONG:
+                return "number too long";
+            default:
+                return "unknown result " + result;
+        }
+    }
+
+    /**
+     * Returns the size of an alpha tag as the ADN record stores it: one byte
+     * per septet of the GSM default alphabet, where the characters of its
+     * extension table take two, or UCS2 with a coding byte when the name
+     * has characters outside that alphabet.
+     */
+    private static int nameBytes(String name) {
+        if (name == null) {
+            return 0;
+        }
+        final int septets = GsmAlphabet.countGsmSeptetsUsingTables(name, false, 0, 0);
+        return septets >= 0 ? septets : 2 * name.length() + 1;
+    }
+
+    private static int digitCount(String number) {
+        final String canonical = PhoneNumberNormalizer.canonicalize(number);
+        if (canonical == null) {
+            return 0;
+        }
+        return canonical.startsWith("+") ? canonical.length() - 1 : canonical.length();
+    }
+
+    private static int countValues(String list) {
+        final SimValueTokenizer tokenizer = new SimValueTokenizer().reset(list);
+        int count = 0;
+        while (tokenizer.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "sub " + mSubscription + ": slots=" + mUsedSlots + "/" + mTotalSlots
+                + " freeEmails=" + mFreeEmails + " freeAnrs=" + mFreeAnrs
+                + " maxName=" + mMaxNameBytes;
+    }
+
+    private static void log(String msg) {
+        if (DBG) Log.d(TAG, msg);
+    }
+}
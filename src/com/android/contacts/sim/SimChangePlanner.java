@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.sim;
+
+/**
+ * Works out which data rows of a stored SIM contact have to change so that it
+ * matches a new SIM record.
+ *
+ * This class only compares strings and reports the result through
+ * {@link Sink}, so the rules can be exercised on a plain JVM without a
+ * contacts provider behind them. Name and number are single rows that are
+ * inserted, updated or deleted in place. ANRs and emails are stored as one
+ * data row per value, so a changed list deletes every row of that kind and
+ * inserts the new values.
+ */
+public final class SimChangePlanner {
+    public static final int FIELD_NAME = 0;
+    public static final int FIELD_NUMBER = 1;
+    public static final int FIELD_ANR = 2;
+    public static final int FIELD_EMAIL = 3;
+
+    public static final int ACTION_INSERT = 0;
+    public static final int ACTION_UPDATE = 1;
+    /** Removes the row, or every row of a multi-valued field. */
+    public static final int ACTION_DELETE = 2;
+
+    /** Receives the row changes of one contact in the order they must be applied. */
+    public interface Sink {
+        void onChange(int field, int action, String value);
+    }
+
+    private SimChangePlanner() {
+    }
+
+    /**
+     * Reports the changes that turn {@code before} into {@code after}.
+     *
+     * @return the number of changes reported
+     */
+    public static int plan(SimRecord before, SimRecord after, Sink sink) {
+        int changes = planSingle(FIELD_NAME, before.name, after.name, sink);
+        changes += planSingle(FIELD_NUMBER, before.number, after.number, sink);
+        changes += planList(FIELD_ANR, before.anrs, after.anrs, sink);
+        changes += planList(FIELD_EMAIL, before.emails, after.emails, sink);
+        return changes;
+    }
+
+    private static int planSingle(int field, String oldValue, String newValue, Sink sink) {
+        if (isEmpty(oldValue)) {
+            if (isEmpty(newValue)) {
+                return 0;
+            }
+            sink.onChange(field, ACTION_INSERT, newValue);
+        } else if (isEmpty(newValue)) {
+            sink.onChange(field, ACTION_DELETE, null);
+        } else if (field == FIELD_NUMBER ? !PhoneNumberNormalizer.sameNumber(oldValue, newValue)
+                : !oldValue.equals(newValue)) {
+            sink.onChange(field, ACTION_UPDATE, newValue);
+        } else {
+            return 0;
+        }
+        return 1;
+    }
+
+    private static int planList(int field, String oldValues, String newValues, Sink sink) {
+        if (field == FIELD_ANR ? PhoneNumberNormalizer.sameNumberList(oldValues, newValues)
+                : SimRecord.sameList(oldValues, newValues)) {
+            return 0;
+        }
+        int changes = 0;
+        if (!isEmpty(oldValues)) {
+            sink.onChange(field, ACTION_DELETE, null);
+            changes++;
+        }
+        if (isEmpty(newValues)) {
+            return changes;
+        }
+        final SimValueTokenizer tokenizer = new SimValueTokenizer().reset(newValues);
+        while (tokenizer.next()) {
+            sink.onChange(field, ACTION_INSERT, tokenizer.value());
+            changes++;
+        }
+        return changes;
+    }
+
+    static boolean isEmpty(String value) {
+        return value == null || value.length() == 0;
+    }
+}
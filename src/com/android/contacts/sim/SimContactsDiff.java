@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.contacts.sim;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Reconciles the records read from a SIM with the contacts of its account.
+ *
+ * Records are matched on their SIM index first, then on their content, and
+ * finally on their name, so a record that moved or changed on the card maps
+ * onto the contact it produced instead of shifting every following row. Only
+ * records that could not be matched at all become inserts or deletes. Every
+ * pass is a single walk over hash maps, so the cost is linear in the size of
+ * the phonebook.
+ */
+public class SimContactsDiff {
+
+    /** A contact of the SIM account as stored in the contacts provider. */
+    public static class DatabaseRow {
+        public final long rawContactId;
+        public final long contactId;
+        public final SimRecord record;
+        boolean matched;
+
+        public DatabaseRow(long rawContactId, long contactId, SimRecord record) {
+            this.rawContactId = rawContactId;
+            this.contactId = contactId;
+            this.record = record;
+        }
+    }
+
+    /**
+     * A stored contact paired with the SIM record it was matched to; in
+     * {@link #updates} its content has to be replaced by that record.
+     */
+    public static class Update {
+        public final DatabaseRow row;
+        public final SimRecord record;
+
+        Update(DatabaseRow row, SimRecord record) {
+            this.row = row;
+            this.record = record;
+        }
+    }
+
+    public final ArrayList<SimRecord> inserts = new ArrayList<SimRecord>();
+    public final ArrayList<Update> updates = new ArrayList<Update>();
+    public final ArrayList<DatabaseRow> deletes = new ArrayList<DatabaseRow>();
+    /** Stored contacts that already have the content of their SIM record. */
+    public final ArrayList<Update> matched = new ArrayList<Update>();
+    public int unchanged = 0;
+
+    private SimContactsDiff() {
+    }
+
+    public static SimContactsDiff compute(List<SimRecord> simRecords, List<DatabaseRow> rows) {
+        final SimContactsDiff diff = new SimContactsDiff();
+        final int simCount = simRecords.size();
+        final boolean[] simMatched = new boolean[simCount];
+
+        // Pass 1: same slot on the card.
+        final HashMap<Integer, DatabaseRow> byIndex = new HashMap<Integer, DatabaseRow>();
+        for (DatabaseRow row : rows) {
+            row.matched = false;
+            if (row.record.index >= 0) {
+                byIndex.put(row.record.index, row);
+            }
+        }
+        if (!byIndex.isEmpty()) {
+            for (int i = 0; i < simCount; i++) {
+                final SimRecord record = simRecords.get(i);
+                final DatabaseRow row = record.index >= 0 ? byIndex.get(record.index) : null;
+                if (row == null || row.matched) {
+                    continue;
+                }
+                row.matched = true;
+                simMatched[i] = true;
+                if (row.record.sameContent(record)) {
+                    diff.unchanged++;
+                    diff.matched.add(new Update(row, record));
+                } else {
+                    diff.updates.add(new Update(row, record));
+                }
+            }
+        }
+
+        // Pass 2: same content, wherever it is stored.
+        final HashMap<SimRecord, ArrayList<DatabaseRow>> byContent =
+                new HashMap<SimRecord, ArrayList<DatabaseRow>>();
+        for (DatabaseRow row : rows) {
+            if (!row.matched) {
+                put(byContent, row.record, row);
+            }
+        }
+        for (int i = 0; i < simCount; i++) {
+            if (simMatched[i]) {
+                continue;
+            }
+            final DatabaseRow row = take(byContent, simRecords.get(i));
+            if (row != null) {
+                simMatched[i] = true;
+                diff.unchanged++;
+                diff.matched.add(new Update(row, simRecords.get(i)));
+            }
+        }
+
+        // Pass 3: same name, with a changed number.
+        final HashMap<String, ArrayList<DatabaseRow>> byName =
+                new HashMap<String, ArrayList<DatabaseRow>>();
+        for (DatabaseRow row : rows) {
+            if (!row.matched) {
+                put(byName, SimRecord.nonNull(row.record.name), row);
+            }
+        }
+        for (int i = 0; i < simCount; i++) {
+            if (simMatched[i]) {
+                continue;
+            }
+            final SimRecord record = simRecords.get(i);
+            final DatabaseRow row = take(byName, SimRecord.nonNull(record.name));
+            if (row != null) {
+                simMatched[i] = true;
+                diff.updates.add(new Update(row, record));
+            } else {
+                diff.inserts.add(record);
+            }
+        }
+
+        for (DatabaseRow row : rows) {
+            if (!row.matched) {
+                diff.deletes.add(row);
+            }
+        }
+        return diff;
+    }
+
+    private static <K> void put(HashMap<K, ArrayList<DatabaseRow>> map, K key,
+            DatabaseRow row) {
+        ArrayList<DatabaseRow> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<DatabaseRow>(1);
+            map.put(key, list);
+        }
+        list.add(row);
+    }
+
+    private static <K> DatabaseRow take(HashMap<K, ArrayList<DatabaseRow>> map, K key) {
+        final ArrayList<DatabaseRow> list = map.get(key);
+        if (list == null) {
+            return null;
+        }
+        while (!list.isEmpty()) {
+            final DatabaseRow row = list.remove(list.size() - 1);
+            if (!row.matched) {
+                row.matched = true;
+                return row;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "inserts=" + inserts.size() + ", updates=" + updates.size()
+                + ", deletes=" + deletes.size() + ", unchanged=" + unchanged;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.contacts.sim;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.os.CancellationSignal;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Imports SIM contacts into the contacts provider, packing the operations of
+ * many contacts into one {@link ContentResolver#applyBatch} call.
+ *
+ * Every contact starts with a raw contact insert that its data rows refer to
+ * with a back reference, and that insert is marked as a yield point so the
+ * provider can let other readers in between contacts. A batch is flushed
+ * before it grows past the provider operation limit or the binder transaction
+ * budget, so a contact is never split across two batches. The operation
+ * limit of each batch comes from {@link ProviderWriteGate}, which shrinks it
+ * while the provider is slow to answer.
+ *
+ * The raw contacts are inserted with aggregation suspended, which keeps the
+ * aggregator out of the insert batches. {@link #resumeAggregation} turns it
+ * back on for all of them in one sweep once the import is over.
+ */
+public class SimContactsImporter {
+    private static final String TAG = "SimContactsImporter";
+    private static final boolean DBG = Log.isLoggable(TAG, Log.DEBUG);
+
+    // ContactsProvider refuses batches larger than 500 operations.
+    private static final int MAX_OPERATIONS_PER_BATCH = 400;
+    // Stay well below the 1MB binder transaction buffer shared by the process.
+    private static final int MAX_BYTES_PER_BATCH = 256 * 1024;
+    // Raw contacts re-enabled for aggregation per update operation.
+    private static final int MAX_IDS_PER_AGGREGATION = 500;
+
+    private final ContentResolver mResolver;
+    private final Account mAccount;
+    private final CancellationSignal mSignal;
+    private final ArrayList<ContentProviderOperation> mOperationList =
+            new ArrayList<ContentProviderOperation>();
+    private final SimBatchPlanner mPlanner =
+            new SimBatchPlanner(MAX_OPERATIONS_PER_BATCH, MAX_BYTES_PER_BATCH);
+    private final SimValueTokenizer mTokenizer = new SimValueTokenizer();
+    // Positions of the raw contact inserts in the pending batch.
+    private final ArrayList<Integer> mRawContactOperations = new ArrayList<Integer>();
+    private final ArrayList<Long> mSuspendedRawContactIds = new ArrayList<Long>();
+
+    private int mBatchContacts = 0;
+    private int mImportedContacts = 0;
+    private int mFailedContacts = 0;
+    private int mBatchCount = 0;
+    private int mAppliedOperations = 0;
+    private long mStartTime = 0;
+
+    public SimContactsImporter(ContentResolver resolver, Account account) {
+        this(resolver, account, null);
+    }
+
+    /**
+     * @param signal checked before every batch; a canceled import throws
+     *        {@link android.os.OperationCanceledException}
+     */
+    public SimContactsImporter(ContentResolver resolver, Account account,
+            CancellationSignal signal) {
+        mResolver = resolver;
+        mAccount = account;
+        mSignal = signal;
+    }
+
+    public void add(String name, String number, String emails, String anrs) {
+        add(new SimRecord(-1, name, number, emails, anrs));
+    }
+
+    /**
+     * Queues one SIM record, flushing the pending batch first if the record
+     * would not fit into it. The raw contact keeps the record's SIM index in
+     * {@link RawContacts#SOURCE_ID} and its checksum in
+     * {@link RawContacts#SYNC1}.
+     */
+    public void add(SimRecord record) {
+        final String name = record.name;
+        final String number = record.number;
+        final String emails = record.emails;
+        final String anrs = record.anrs;
+        if (mStartTime == 0) {
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+        if (mOperationList.isEmpty()) {
+            mPlanner.setMaxOperations(
+                    ProviderWriteGate.getOperationLimit(MAX_OPERATIONS_PER_BATCH));
+        }
+        if (mPlanner.needsFlush(name, number, emails, anrs)) {
+            flush();
+        }
+        mPlanner.add();
+        final int backReference = mOperationList.size();
+        mRawContactOperations.add(backReference);
+        ContentProviderOperation.Builder builder =
+            ContentProviderOperation.newInsert(SimContactsService.RAW_CONTACTS_SYNC_ADAPTER_URI);
+        builder.withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_SUSPENDED);
+        if (mAccount != null) {
+            builder.withValue(RawContacts.ACCOUNT_NAME, mAccount.name);
+            builder.withValue(RawContacts.ACCOUNT_TYPE, mAccount.type);
+        }
+        if (record.index >= 0) {
+            builder.withValue(RawContacts.SOURCE_ID, String.valueOf(record.index));
+        }
+        builder.withValue(RawContacts.SYNC1, record.getChecksum());
+        if (backReference > 0) {
+            builder.withYieldAllowed(true);
+        }
+        mOperationList.add(builder.build());
+
+        builder = ContentProviderOperation.newInsert(SimContactsService.DATA_SYNC_ADAPTER_URI);
+        builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, backReference);
+        builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
+        builder.withValue(StructuredName.DISPLAY_NAME, name);
+        mOperationList.add(builder.build());
+
+        builder = ContentProviderOperation.newInsert(SimContactsService.DATA_SYNC_ADAPTER_URI);
+        builder.withValueBackReference(Phone.RAW_CONTACT_ID, backReference);
+        builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+        builder.withValue(Phone.TYPE, Phone.TYPE_MOBILE);
+        builder.withValue(Phone.NUMBER, number);
+        builder.withValue(Data.IS_PRIMARY, 1);
+        mOperationList.add(builder.build());
+
+        mTokenizer.reset(anrs);
+        while (mTokenizer.next()) {
+            builder = ContentProviderOperation.newInsert(SimContactsService.DATA_SYNC_ADAPTER_URI);
+            builder.withValueBackReference(Phone.RAW_CONTACT_ID, backReference);
+            builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+            builder.withValue(Phone.TYPE, Phone.TYPE_HOME);
+            builder.withValue(Phone.NUMBER, mTokenizer.value());
+            mOperationList.add(builder.build());
+        }
+
+        mTokenizer.reset(emails);
+        while (mTokenizer.next()) {
+            builder = ContentProviderOperation.newInsert(SimContactsService.DATA_SYNC_ADAPTER_URI);
+            builder.withValueBackReference(Email.RAW_CONTACT_ID, backReference);
+            builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
+            builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
+            builder.withValue(Email.ADDRESS, mTokenizer.value());
+            mOperationList.add(builder.build());
+        }
+
+        mBatchContacts++;
+    }
+
+    /**
+     * Applies the pending batch, if any.
+     */
+    public void flush() {
+        if (mOperationList.isEmpty()) {
+            return;
+        }
+        if (mSignal != null) {
+            mSignal.throwIfCanceled();
+        }
+        try {
+            final ContentProviderResult[] results =
+                    ProviderWriteGate.applyBatch(mResolver, mOperationList);
+            for (int position : mRawContactOperations) {
+                mSuspendedRawContactIds.add(ContentUris.parseId(results[position].uri));
+            }
+            mImportedContacts += mBatchContacts;
+            mAppliedOperations += mOperationList.size();
+        } catch (RemoteException e) {
+            mFailedContacts += mBatchContacts;
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } catch (OperationApplicationException e) {
+            mFailedContacts += mBatchContacts;
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+        mBatchCount++;
+        mOperationList.clear();
+        mRawContactOperations.clear();
+        mPlanner.reset();
+        mBatchContacts = 0;
+    }
+
+    /**
+     * Flushes the remaining contacts and reports the import rate.
+     *
+     * @return the number of contacts written to the provider
+     */
+    public int finish() {
+        flush();
+        if (mStartTime != 0) {
+            final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - mStartTime);
+            log("imported " + mImportedContacts + " contacts (" + mFailedContacts
+                    + " failed) in " + mBatchCount + " batches, " + elapsed + "ms, "
+                    + (mImportedContacts * 1000L / elapsed) + " contacts/s");
+        }
+        return mImportedContacts;
+    }
+
+    /**
+     * Re-enables aggregation for every raw contact imported so far, with a
+     * few IN-list updates applied in one batch. Call it once the import is
+     * over, also when it was canceled, so no contact stays unaggregated.
+     *
+     * @return the number of raw contacts handed to the aggregator
+     */
+    public int resumeAggregation() {
+        final int count = mSuspendedRawContactIds.size();
+        if (count == 0) {
+            return 0;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        final StringBuilder selection = new StringBuilder();
+        for (int begin = 0; begin < count; begin += MAX_IDS_PER_AGGREGATION) {
+            final int end = Math.min(count, begin + MAX_IDS_PER_AGGREGATION);
+            selection.setLength(0);
+            selection.append(RawContacts._ID).append(" IN (");
+            for (int i = begin; i < end; i++) {
+                if (i > begin) {
+                    selection.append(',');
+                }
+                selection.append(mSuspendedRawContactIds.get(i));
+            }
+            selection.append(')');
+            operations.add(ContentProviderOperation.newUpdate(
+                    SimContactsService.RAW_CONTACTS_SYNC_ADAPTER_URI)
+                    .withSelection(selection.toString(), null)
+                    .withValue(RawContacts.AGGREGATION_MODE,
+                            RawContacts.AGGREGATION_MODE_DEFAULT)
+                    .withYieldAllowed(true)
+                    .build());
+        }
+        mSuspendedRawContactIds.clear();
+        try {
+            ProviderWriteGate.applyBatch(mResolver, operations);
+            mAppliedOperations += operations.size();
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            return 0;
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            return 0;
+        }
+        log("resumed aggregation of " + count + " contacts in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+        return count;
+    }
+
+    public int getImportedCount() {
+        return mImportedContacts;
+    }
+
+    public int getFailedCount() {
+        return mFailedContacts;
+    }
+
+    public int getAppliedOperationCount() {
+        return mAppliedOperations;
+    }
+
+    private static void log(String msg) {
+        if (DBG) Log.d(TAG, msg);
+    }
+}
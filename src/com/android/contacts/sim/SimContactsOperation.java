@@ -28,13 +28,16 @@
  */
 package com.android.contacts.sim;
 
-import android.content.AsyncQueryHandler;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Process;
+import android.os.SystemProperties;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Contacts;
@@ -43,22 +46,30 @@ import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.RawContacts;
-import android.telephony.PhoneNumberUtils;
-import android.telephony.TelephonyManager;
-import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class SimContactsOperation {
 
     private static final String  TAG = "SimContactsOperation";
-    private static final boolean DBG = true;
+    private static final boolean DBG = Log.isLoggable(TAG, Log.DEBUG);
     private static final int SUB1 = SimContactsConstants.SUB_1;
     private static final int SUB2 = SimContactsConstants.SUB_2;
-    private static final int QUERY_TOKEN = 0;
-    private static final int INSERT_TOKEN = 1;
-    private static final int UPDATE_TOKEN = 2;
-    private static final int DELETE_TOKEN = 3;
+    private static final int LOOKUP_THREADS = 2;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    // Debuggable builds may serve the ADN records from another provider.
+    private static final String PROP_ICC_AUTHORITY = "debug.simcontacts.icc_authority";
 
     static final String[] ACCOUNT_PROJECTION = new String[] {
         RawContacts._ID,
@@ -74,7 +85,68 @@ public class SimContactsOperation {
     private static final int ACCOUNT_COLUMN_TYPE = 3;
     private static final int ACCOUNT_COLUMN_PHONE_NAME = 4;
 
+    static final String[] SIM_DATA_PROJECTION = new String[] {
+        Data.RAW_CONTACT_ID,
+        Data.MIMETYPE,
+        Data.DATA1,
+        Data.DATA2,
+    };
+
+    private static final int SIM_DATA_COLUMN_RAW_ID = 0;
+    private static final int SIM_DATA_COLUMN_MIMETYPE = 1;
+    private static final int SIM_DATA_COLUMN_VALUE = 2;
+    private static final int SIM_DATA_COLUMN_TYPE = 3;
+
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    static final String SIM_DATA_SELECTION = RawContacts.ACCOUNT_TYPE + "=? AND "
+            + RawContacts.ACCOUNT_NAME + "=? AND " + Data.MIMETYPE + " IN (?,?,?)";
+
+
+
+    // Provider lookups for callers that must not block, usually the UI thread.
+    private static final ThreadPoolExecutor sLookupExecutor = new ThreadPoolExecutor(
+            LOOKUP_THREADS, LOOKUP_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
 
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "SimLookup #" + mCount.getAndIncrement());
+                }
+            });
+
+    static {
+        sLookupExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * A lookup running on the lookup executor. Canceling it also cancels the
+     * provider query in progress.
+     */
+    private static class LookupTask<T> extends FutureTask<T> {
+        private final CancellationSignal mSignal;
+
+        LookupTask(final CancellationSignal signal, Callable<T> callable) {
+            super(callable);
+            mSignal = signal;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final boolean canceled = super.cancel(mayInterruptIfRunning);
+            if (canceled) {
+                mSignal.cancel();
+            }
+            return canceled;
+        }
+    }
 
     private static Context mContext;
     private ContentResolver mResolver;
@@ -92,11 +164,25 @@ public class SimContactsOperation {
         Uri uri = getContentUri(subscription);
         String number = values.getAsString(SimContactsConstants.STR_NUMBER);
         String anrs = values.getAsString(SimContactsConstants.STR_ANRS);
-        values.put(SimContactsConstants.STR_NUMBER,PhoneNumberUtils.stripSeparators(number));
-        values.put(SimContactsConstants.STR_ANRS,PhoneNumberUtils.stripSeparators(anrs));
+        values.put(SimContactsConstants.STR_NUMBER,PhoneNumberNormalizer.canonicalize(number));
+        values.put(SimContactsConstants.STR_ANRS,PhoneNumberNormalizer.canonicalize(anrs));
+
+        final SimRecord record = toSimRecord(values, false);
+        final SimCapacityIndex capacity = getCapacityIndex(subscription);
+        if (capacity != null) {
+            final int check = capacity.checkInsert(record);
+            if (check != SimCapacityIndex.RESULT_OK) {
+                Log.w(TAG, "reject insert at sub " + subscription + ": "
+                        + SimCapacityIndex.resultToString(check) + ", " + capacity);
+                return null;
+            }
+        }
 
         Uri resultUri;
         resultUri = mResolver.insert(uri,values);
+        if (resultUri != null && capacity != null) {
+            capacity.onInserted(record);
+        }
         return resultUri;
     }
 
@@ -109,12 +195,27 @@ public class SimContactsOperation {
         String newNumber = values.getAsString(SimContactsConstants.STR_NEW_NUMBER);
         String oldAnrs = values.getAsString(SimContactsConstants.STR_ANRS);
         String newAnrs = values.getAsString(SimContactsConstants.STR_NEW_ANRS);
-        values.put(SimContactsConstants.STR_NUMBER,PhoneNumberUtils.stripSeparators(oldNumber));
-        values.put(SimContactsConstants.STR_NEW_NUMBER,PhoneNumberUtils.stripSeparators(newNumber));
-        values.put(SimContactsConstants.STR_ANRS,PhoneNumberUtils.stripSeparators(oldAnrs));
-        values.put(SimContactsConstants.STR_NEW_ANRS,PhoneNumberUtils.stripSeparators(newAnrs));
+        values.put(SimContactsConstants.STR_NUMBER,PhoneNumberNormalizer.canonicalize(oldNumber));
+        values.put(SimContactsConstants.STR_NEW_NUMBER,PhoneNumberNormalizer.canonicalize(newNumber));
+        values.put(SimContactsConstants.STR_ANRS,PhoneNumberNormalizer.canonicalize(oldAnrs));
+        values.put(SimContactsConstants.STR_NEW_ANRS,PhoneNumberNormalizer.canonicalize(newAnrs));
+
+        final SimRecord before = toSimRecord(values, false);
+        final SimRecord after = toSimRecord(values, true);
+        final SimCapacityIndex capacity = getCapacityIndex(subscription);
+        if (capacity != null) {
+            final int check = capacity.checkUpdate(before, after);
+            if (check != SimCapacityIndex.RESULT_OK) {
+                Log.w(TAG, "reject update at sub " + subscription + ": "
+                        + SimCapacityIndex.resultToString(check) + ", " + capacity);
+                return 0;
+            }
+        }
 
         result = mResolver.update(uri,values,null,null);
+        if (result > 0 && capacity != null) {
+            capacity.onUpdated(before, after);
+        }
         return result;
 
     }
@@ -128,9 +229,9 @@ public class SimContactsOperation {
         String emails = values.getAsString(SimContactsConstants.STR_EMAILS);
         String anrs = values.getAsString(SimContactsConstants.STR_ANRS);
         if (number != null)
-            num = PhoneNumberUtils.stripSeparators(number);
+            num = PhoneNumberNormalizer.canonicalize(number);
         if (anrs != null)
-            anrs = PhoneNumberUtils.stripSeparators(anrs);
+            anrs = PhoneNumberNormalizer.canonicalize(anrs);
         Uri uri = getContentUri(subscription);
 
 
@@ -156,31 +257,89 @@ public class SimContactsOperation {
         }
 
         result = mResolver.delete(uri,buf.toString(),null);
+        final SimCapacityIndex capacity = getCapacityIndex(subscription);
+        if (result > 0 && capacity != null) {
+            capacity.onDeleted(new SimRecord(-1, name, num, emails, anrs));
+        }
         return result;
 
     }
 
-    private Uri getContentUri(int subscription) {
-        Uri uri = null;
+    /**
+     * Queues an insert on the write-back queue of the subscription instead
+     * of blocking on the ICC.
+     *
+     * @return a future with the number of records written
+     */
+    public Future<Integer> insertAsync(ContentValues values, int subscription) {
+        return SimWriteBackQueue.getInstance(mContext, subscription).insert(values);
+    }
+
+    /** Asynchronous form of {@link #update}; edits of queued records are merged. */
+    public Future<Integer> updateAsync(ContentValues values, int subscription) {
+        return SimWriteBackQueue.getInstance(mContext, subscription).update(values);
+    }
+
+    /** Asynchronous form of {@link #delete}; deleting a queued insert drops both. */
+    public Future<Integer> deleteAsync(ContentValues values, int subscription) {
+        return SimWriteBackQueue.getInstance(mContext, subscription).delete(values);
+    }
+
+    private static SimCapacityIndex getCapacityIndex(int subscription) {
         if (subscription != SUB1 && subscription != SUB2) {
-            return uri;
+            return null;
         }
-        int[] subId = SubscriptionManager.getSubId(subscription);
-        if (subId != null && TelephonyManager.getDefault().isMultiSimEnabled()) {
-            uri = Uri.parse(SimContactsConstants.SIM_SUB_URI + subId[0]);
-        } else {
-            uri = Uri.parse(SimContactsConstants.SIM_URI);
+        return SimCapacityIndex.getInstance(subscription);
+    }
+
+    /**
+     * Reads the ADN fields of an insert, update or delete request.
+     *
+     * @param newValues read the {@code new*} keys of an update instead of
+     *        the current ones
+     */
+    static SimRecord toSimRecord(ContentValues values, boolean newValues) {
+        return new SimRecord(-1,
+                values.getAsString(newValues ? SimContactsConstants.STR_NEW_TAG
+                        : SimContactsConstants.STR_TAG),
+                values.getAsString(newValues ? SimContactsConstants.STR_NEW_NUMBER
+                        : SimContactsConstants.STR_NUMBER),
+                values.getAsString(newValues ? SimContactsConstants.STR_NEW_EMAILS
+                        : SimContactsConstants.STR_EMAILS),
+                values.getAsString(newValues ? SimContactsConstants.STR_NEW_ANRS
+                        : SimContactsConstants.STR_ANRS));
+    }
+
+    private Uri getContentUri(int subscription) {
+        return TelephonyTopology.getInstance(mContext).getIccUri(subscription);
+    }
+
+    /**
+     * Parses an ADN uri. On debuggable builds the authority can be replaced
+     * through {@code debug.simcontacts.icc_authority}, so the sync can be run
+     * against a stand-in phonebook with a known size and latency instead of a
+     * real modem.
+     */
+    static Uri parseIccUri(String uri) {
+        if (Build.IS_DEBUGGABLE) {
+            final String authority = SystemProperties.get(PROP_ICC_AUTHORITY);
+            if (!TextUtils.isEmpty(authority)) {
+                return Uri.parse(uri).buildUpon().encodedAuthority(authority).build();
+            }
         }
-        return uri;
+        return Uri.parse(uri);
     }
 
-    private static Cursor setupAccountCursor(long contactId) {
+    private static Cursor setupAccountCursor(long contactId, CancellationSignal signal) {
         ContentResolver resolver = mContext.getContentResolver();
         Cursor cursor = resolver.query(RawContacts.CONTENT_URI,
                 ACCOUNT_PROJECTION,
                 RawContacts.CONTACT_ID + "="
-                + Long.toString(contactId), null, null);
+                + Long.toString(contactId), null, null, signal);
 
+        if (cursor == null) {
+            return null;
+        }
         if (cursor.moveToFirst()) {
             // TODO: make sure this is the correct one we are query
             return cursor;
@@ -191,8 +350,32 @@ public class SimContactsOperation {
     }
 
     public static ContentValues getSimAccountValues(long contactId) {
+        return getSimAccountValues(contactId, null);
+    }
+
+    /**
+     * Looks up the SIM fields of a contact on the lookup executor.
+     *
+     * @return a future with the values of {@link #getSimAccountValues(long)};
+     *         canceling it stops the provider queries
+     */
+    public static Future<ContentValues> getSimAccountValuesAsync(final long contactId) {
+        final CancellationSignal signal = new CancellationSignal();
+        final LookupTask<ContentValues> task = new LookupTask<ContentValues>(signal,
+                new Callable<ContentValues>() {
+                    @Override
+                    public ContentValues call() {
+                        return getSimAccountValues(contactId, signal);
+                    }
+                });
+        sLookupExecutor.execute(task);
+        return task;
+    }
+
+    private static ContentValues getSimAccountValues(long contactId,
+            CancellationSignal signal) {
         ContentValues mValues = new ContentValues();
-        Cursor cursor = setupAccountCursor(contactId);
+        Cursor cursor = setupAccountCursor(contactId, signal);
         if (cursor == null || cursor.getCount() == 0) {
             mValues.clear();
             return mValues;
@@ -204,13 +387,14 @@ public class SimContactsOperation {
         if (SimContactsConstants.ACCOUNT_TYPE_SIM.equals(accountType)) {
             mValues.clear();
             String name = getContactItems(rawContactId,
-                    StructuredName.CONTENT_ITEM_TYPE, ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME);
+                    StructuredName.CONTENT_ITEM_TYPE, ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME,
+                    signal);
             mValues.put(SimContactsConstants.STR_TAG,name);
 
 
             String number = getContactPhoneNumber(rawContactId,
                 Phone.CONTENT_ITEM_TYPE, String.valueOf(Phone.TYPE_MOBILE),
-                ContactsContract.CommonDataKinds.Phone.DATA);
+                ContactsContract.CommonDataKinds.Phone.DATA, signal);
             mValues.put(SimContactsConstants.STR_NUMBER,number);
         } else {
             cursor.close();
@@ -219,9 +403,134 @@ public class SimContactsOperation {
         return mValues;
     }
 
+    /**
+     * Loads the name, numbers and emails of every contact in the given SIM
+     * account with a single query, keyed by raw contact id.
+     */
+    public static HashMap<Long, SimRecord> loadSimAccountRecords(ContentResolver resolver,
+            String accountName) {
+        HashMap<Long, SimRecord> records = new HashMap<Long, SimRecord>();
+        loadSimAccountRecords(resolver, accountName, SIM_DATA_SELECTION, records);
+        return records;
+    }
+
+    /**
+     * Like {@link #loadSimAccountRecords(ContentResolver, String)}, but only
+     * for the given raw contacts, queried in chunks of IN-lists.
+     */
+    public static HashMap<Long, SimRecord> loadSimAccountRecords(ContentResolver resolver,
+            String accountName, long[] rawContactIds) {
+        HashMap<Long, SimRecord> records = new HashMap<Long, SimRecord>();
+        StringBuilder selection = new StringBuilder();
+        for (int start = 0; start < rawContactIds.length; start += MAX_IDS_PER_QUERY) {
+            final int end = Math.min(rawContactIds.length, start + MAX_IDS_PER_QUERY);
+            selection.setLength(0);
+            selection.append(SIM_DATA_SELECTION).append(" AND ")
+                    .append(Data.RAW_CONTACT_ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(',');
+                }
+                selection.append(rawContactIds[i]);
+            }
+            selection.append(')');
+            loadSimAccountRecords(resolver, accountName, selection.toString(), records);
+        }
+        return records;
+    }
+
+    private static void loadSimAccountRecords(ContentResolver resolver, String accountName,
+            String selection, HashMap<Long, SimRecord> records) {
+        Cursor c = resolver.query(Data.CONTENT_URI, SIM_DATA_PROJECTION, selection,
+                new String[] {SimContactsConstants.ACCOUNT_TYPE_SIM, accountName,
+                    StructuredName.CONTENT_ITEM_TYPE, Phone.CONTENT_ITEM_TYPE,
+                    Email.CONTENT_ITEM_TYPE},
+                Data.RAW_CONTACT_ID + "," + Data._ID);
+        if (c == null) {
+            return;
+        }
+
+        long rawContactId = -1;
+        String name = null;
+        String number = null;
+        StringBuilder anrs = new StringBuilder();
+        StringBuilder emails = new StringBuilder();
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(SIM_DATA_COLUMN_RAW_ID);
+                if (id != rawContactId) {
+                    if (rawContactId != -1) {
+                        records.put(rawContactId, new SimRecord(-1, name, number,
+                                toStringOrNull(emails), toStringOrNull(anrs)));
+                    }
+                    rawContactId = id;
+                    name = null;
+                    number = null;
+                    anrs.setLength(0);
+                    emails.setLength(0);
+                }
+                String mimeType = c.getString(SIM_DATA_COLUMN_MIMETYPE);
+                String value = c.getString(SIM_DATA_COLUMN_VALUE);
+                if (StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                    name = value;
+                } else if (Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                    int type = c.getInt(SIM_DATA_COLUMN_TYPE);
+                    if (type == Phone.TYPE_MOBILE && number == null) {
+                        number = value;
+                    } else if (type == Phone.TYPE_HOME && !TextUtils.isEmpty(value)) {
+                        appendValue(anrs, value);
+                    }
+                } else if (Email.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                    if (!TextUtils.isEmpty(value)) {
+                        appendValue(emails, value);
+                    }
+                }
+            }
+            if (rawContactId != -1) {
+                records.put(rawContactId, new SimRecord(-1, name, number,
+                        toStringOrNull(emails), toStringOrNull(anrs)));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void appendValue(StringBuilder buf, String value) {
+        if (buf.length() > 0) {
+            buf.append(',');
+        }
+        buf.append(value);
+    }
+
+    private static String toStringOrNull(StringBuilder buf) {
+        return buf.length() == 0 ? null : buf.toString();
+    }
+
     public static int getSimSubscription(long contactId) {
+        return getSimSubscription(contactId, null);
+    }
+
+    /**
+     * Looks up the SIM subscription of a contact on the lookup executor.
+     *
+     * @return a future with the result of {@link #getSimSubscription(long)}
+     */
+    public static Future<Integer> getSimSubscriptionAsync(final long contactId) {
+        final CancellationSignal signal = new CancellationSignal();
+        final LookupTask<Integer> task = new LookupTask<Integer>(signal,
+                new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return getSimSubscription(contactId, signal);
+                    }
+                });
+        sLookupExecutor.execute(task);
+        return task;
+    }
+
+    private static int getSimSubscription(long contactId, CancellationSignal signal) {
         int subscription = -1;
-        Cursor cursor = setupAccountCursor(contactId);
+        Cursor cursor = setupAccountCursor(contactId, signal);
         if (cursor == null || cursor.getCount() == 0) {
             subscription = -1;
             return subscription;
@@ -249,13 +558,14 @@ public class SimContactsOperation {
     }
 
 
-    private static String getContactItems(long rawContactId, String selectionArg, String columnName) {
+    private static String getContactItems(long rawContactId, String selectionArg, String columnName,
+            CancellationSignal signal) {
         String retval = null;
         Uri baseUri = ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId);
         Uri dataUri = Uri.withAppendedPath(baseUri, RawContacts.Data.CONTENT_DIRECTORY);
 
-        Cursor c = mContext.getContentResolver().query(dataUri, null,
-                Data.MIMETYPE + "=?", new String[] {selectionArg}, null);
+        Cursor c = mContext.getContentResolver().query(dataUri, new String[] {columnName},
+                Data.MIMETYPE + "=?", new String[] {selectionArg}, null, signal);
         if (c == null || c.getCount() == 0) {
             if(c != null) {
                 c.close();
@@ -274,14 +584,15 @@ public class SimContactsOperation {
     }
 
     private static
-    String getContactPhoneNumber(long rawContactId, String selectionArg1, String selectionArg2, String columnName) {
+    String getContactPhoneNumber(long rawContactId, String selectionArg1, String selectionArg2, String columnName,
+            CancellationSignal signal) {
         String retval = null;
         Uri baseUri = ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId);
         Uri dataUri = Uri.withAppendedPath(baseUri, RawContacts.Data.CONTENT_DIRECTORY);
 
-        Cursor c = mContext.getContentResolver().query(dataUri, null,
+        Cursor c = mContext.getContentResolver().query(dataUri, new String[] {columnName},
                 Data.MIMETYPE + "=? AND " + Phone.TYPE + "=?",
-                new String[] {selectionArg1,selectionArg2}, null);
+                new String[] {selectionArg1,selectionArg2}, null, signal);
         if (c == null || c.getCount() == 0) {
             if(c != null) {
                 c.close();
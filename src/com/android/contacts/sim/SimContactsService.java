@@ -31,9 +31,9 @@ package com.android.contacts.sim;
 import android.app.Service;
 import android.accounts.Account;
 import android.accounts.AccountManager;
-import android.content.AsyncQueryHandler;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderOperation.Builder;
@@ -45,10 +45,13 @@ import android.content.SharedPreferences.Editor;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.RemoteException;
 import android.os.IBinder;
 import android.os.Handler;
 import android.os.Message;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Data;
@@ -60,18 +63,20 @@ import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.Settings;
-import android.text.TextUtils;
 import android.telephony.TelephonyManager;
-import android.telephony.SubscriptionManager;
+import android.text.TextUtils;
 import android.util.Log;
 import com.android.internal.telephony.TelephonyIntents;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 
 public class SimContactsService extends Service {
     private static final String TAG = "SimContactsService";
-    private static boolean DBG = true;
+    private static final boolean DBG = Log.isLoggable(TAG, Log.DEBUG);
 
     private static final String[] COLUMN_NAMES = new String[] {
         "name",
@@ -85,6 +90,7 @@ public class SimContactsService extends Service {
     protected static final int NUMBER_COLUMN = 1;
     protected static final int EMAILS_COLUMN = 2;
     protected static final int ANRS_COLUMN = 3;
+    protected static final int INDEX_COLUMN = 4;
 
 
     static final String[] CONTACTS_ID_PROJECTION = new String[] {
@@ -92,15 +98,36 @@ public class SimContactsService extends Service {
         RawContacts.CONTACT_ID,
         RawContacts.ACCOUNT_NAME,
         RawContacts.ACCOUNT_TYPE,
+        RawContacts.SOURCE_ID,
+        RawContacts.SYNC1,
+        RawContacts.DIRTY,
     };
 
     private static final int RAW_CONTACT_ID_COLUMN = 0;
     private static final int CONTACT_ID_COLUMN_COLUMN = 1;
+    private static final int SOURCE_ID_COLUMN = 4;
+    private static final int SYNC1_COLUMN = 5;
+    private static final int DIRTY_COLUMN = 6;
+
+    // Writes made by the sync itself must not mark the raw contacts dirty.
+    static final Uri RAW_CONTACTS_SYNC_ADAPTER_URI = RawContacts.CONTENT_URI.buildUpon()
+            .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+            .build();
+    static final Uri DATA_SYNC_ADAPTER_URI = Data.CONTENT_URI.buildUpon()
+            .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+            .build();
 
     static final String SIM_DATABASE_SELECTION= RawContacts.ACCOUNT_TYPE + "=?" + " AND " +
                                        RawContacts.ACCOUNT_NAME + "=?" +
                                        " AND " + RawContacts.DELETED + "=?" ;
 
+    // Same arguments as SIM_DATABASE_SELECTION, but also matches the rows
+    // deleted on the phone whose delete the SyncAdapter has not uploaded
+    // yet: their records are still on the card.
+    private static final String SIM_SYNC_SELECTION = RawContacts.ACCOUNT_TYPE + "=? AND "
+            + RawContacts.ACCOUNT_NAME + "=? AND (" + RawContacts.DELETED + "=? OR "
+            + RawContacts.DIRTY + "=1)";
+
     static final String [] SIM_DATABASE_SELECTARGS = {SimContactsConstants.ACCOUNT_TYPE_SIM,
                                     SimContactsConstants.SIM_NAME,"0"};
 
@@ -113,11 +140,14 @@ public class SimContactsService extends Service {
     public static final String SUBSCRIPTION = "sub_id";
     public static final String OPERATION = "operation";
     public static final String SIM_STATE = "sim_state";
+    public static final String REFRESH = "refresh";
 
     public static final int OP_PHONE = 1;
     public static final int OP_SIM = 2;
     public static final int OP_SIM_REFRESH = 3;
 
+    private static final int MSG_START_SYNC = 100;
+
     protected static final int SUB1 = 0;
     protected static final int SUB2 = 1;
     private static final int DEFAULT_SUB = 0;
@@ -137,99 +167,107 @@ public class SimContactsService extends Service {
 
     private static final String IMSI[]={"imsi_sub1", "imsi_sub2"};
 
+    // Splits large deletes into several operations the provider can yield between.
+    private static final int MAX_IDS_PER_DELETE = 200;
+    private static final int MAX_TAG_UPDATES_PER_BATCH = 200;
+
     static final ContentValues sEmptyContentValues = new ContentValues();
     private Context mContext ;
 
     private static int mPhoneNumber=0;
-    protected Cursor [] mSimCursor;
-    protected Cursor [] mDatabaseCursor;
-    protected QuerySimHandler [] mQuerySimHandler;
-    protected QueryDatabaseHandler [] mQueryDatabaseHandler;
     private boolean [] isNewCard;
-    private boolean[] isSimOperationInprocess;
+    private SimSyncState[] mSyncState;
     private AccountManager accountManager;
+    private SimAccountRegistry mAccounts;
     private TelephonyManager mTelephonyManager;
+    private TelephonyTopology mTopology;
     private SharedPreferences mPrefs;
     private volatile Handler mServiceHandler;
-    private HashMap<Integer, Integer> refreshQueue;
 
-    private int[] mSimState;
+    private AtomicIntegerArray mSimState;
+    private String[] mCardId;
+    // Set once cached contacts were published for a card not read yet.
+    private boolean[] mPublishedFromSnapshot;
+    private SimSnapshotStore mSnapshotStore;
+    private SimSyncScheduler mSyncScheduler;
+    private final SimSyncMetrics mMetrics = SimSyncMetrics.getInstance();
 
     @Override
     public void onCreate() {
         Log.d(TAG, "service onCreate!");
+        mTopology = TelephonyTopology.getInstance(this);
         mPhoneNumber = getPhoneCount();
         mContext = getApplicationContext();
         accountManager = AccountManager.get(mContext);
+        mAccounts = new SimAccountRegistry(accountManager);
         mTelephonyManager = (TelephonyManager) getSystemService(Service.TELEPHONY_SERVICE);
         mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
-        mQuerySimHandler = new QuerySimHandler[mPhoneNumber];
-        mQueryDatabaseHandler = new QueryDatabaseHandler[mPhoneNumber];
-        mSimCursor = new Cursor[mPhoneNumber];
-        mDatabaseCursor = new Cursor[mPhoneNumber];
         isNewCard = new boolean[mPhoneNumber];
-        isSimOperationInprocess = new boolean[mPhoneNumber];
-        mSimState = new int[mPhoneNumber];
-        refreshQueue = new HashMap<Integer, Integer>();
+        mSyncState = new SimSyncState[mPhoneNumber];
+        mSimState = new AtomicIntegerArray(mPhoneNumber);
+        mCardId = new String[mPhoneNumber];
+        mPublishedFromSnapshot = new boolean[mPhoneNumber];
+        mSnapshotStore = new SimSnapshotStore(mContext);
+        mSyncScheduler = new SimSyncScheduler(mPhoneNumber);
         mServiceHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
             Bundle args = (Bundle)msg.obj;
             switch(msg.what) {
-                case OP_SIM:
+                case OP_SIM: {
                     final int state = args.getInt(SimContactsService.SIM_STATE);
-                    if (isMultiSimEnabled()) {
-                        int subscription = args.getInt(SimContactsConstants.SUB,-1);
-
-                        if (state != mSimState[subscription]) {
-                            log(" new sim state is " + (state==1 ?"Ready" :"Not Ready") + " at sub: "
+                    final int subscription = isMultiSimEnabled()
+                            ? args.getInt(SimContactsConstants.SUB,-1) : DEFAULT_SUB;
+                    final boolean refresh = args.getBoolean(SimContactsService.REFRESH);
+                    final int oldState = mSimState.getAndSet(subscription, state);
+                    if (state != oldState) {
+                        log(" new sim state is " + (state==1 ?"Ready" :"Not Ready") + " at sub: "
                             + subscription + ", original sim state is "
-                            + (mSimState[subscription]==1 ?"Ready" :"Not Ready"));
-
-                            mSimState[subscription] = state;
-
-                            if (state == SimContactsConstants.SIM_STATE_READY && !isSimOperationInprocess[subscription] ) {
-                                handleSimOp(subscription);
-                            }
-                        }
-
-                    } else {
-                        if (state != mSimState[DEFAULT_SUB]) {
-                            log(" new sim state is " + (state==1 ?"Ready" :"Not Ready")
-                                + ", original sim state is "
-                                + (mSimState[DEFAULT_SUB]==1 ?"Ready" :"Not Ready"));
-                            mSimState[DEFAULT_SUB] = state;
-                            if (state == SimContactsConstants.SIM_STATE_READY) {
-                                handleSimOp();
-                            }
-                        }
+                            + (oldState==1 ?"Ready" :"Not Ready"));
+                    }
+                    if (state != SimContactsConstants.SIM_STATE_READY) {
+                        // Whatever is running was read from a card that is gone now.
+                        mSyncScheduler.cancel(subscription);
+                        SimCapacityIndex.getInstance(subscription).invalidate();
+                    } else if ((state != oldState || refresh)
+                            && mSyncState[subscription].requestSync()) {
+                        startSync(subscription);
                     }
                     break;
+                }
                 case OP_SIM_REFRESH:
                     if (isMultiSimEnabled()) {
                         int subscription = args.getInt(SimContactsConstants.SUB,-1);
-                        if (mSimState[subscription] == SimContactsConstants.SIM_STATE_READY && !isSimOperationInprocess[subscription]) {
-                            log("refresh sim op");
-                            handleSimOp(subscription);
-                        }
-                        else {
+                        if (mSimState.get(subscription) != SimContactsConstants.SIM_STATE_READY) {
                             log("queue refresh sim op");
-                            refreshQueue.put(subscription, OP_SIM_REFRESH);
+                            mSyncState[subscription].markPending();
+                        } else if (mSyncState[subscription].requestSync()) {
+                            log("refresh sim op");
+                            startSync(subscription);
+                        } else {
+                            log("coalesce refresh sim op into pending pass");
                         }
                     }
                     break;
+                case MSG_START_SYNC:
+                    if (mSimState.get(msg.arg1) == SimContactsConstants.SIM_STATE_READY) {
+                        startSync(msg.arg1);
+                    } else {
+                        mSyncState[msg.arg1].abort();
+                    }
+                    break;
                 }
             }
         };
 
         for (int i = 0; i < mPhoneNumber; i++) {
-            mQuerySimHandler[i] =
-                new QuerySimHandler(mContext.getContentResolver(),i);
-            mQueryDatabaseHandler[i] =
-                new QueryDatabaseHandler(mContext.getContentResolver(),i);
             isNewCard[i] = true;
-            isSimOperationInprocess[i] = false;
-            mSimState[i] = SimContactsConstants.SIM_STATE_NOT_READY;
+            mSyncState[i] = new SimSyncState();
+            mSimState.set(i, SimContactsConstants.SIM_STATE_NOT_READY);
+        }
+        mAccounts.start(mServiceHandler);
+        for (int i = 0; i < mPhoneNumber; i++) {
+            publishCachedContacts(i);
         }
     }
 
@@ -253,50 +291,63 @@ public class SimContactsService extends Service {
             return;
         }
 
-        final int state = args.getInt(SimContactsService.SIM_STATE);
+        Message msg = mServiceHandler.obtainMessage();
 
-        if (state == SimContactsConstants.SIM_STATE_READY) {
-            Message msg = mServiceHandler.obtainMessage();
-
-            msg.what = args.getInt(SimContactsService.OPERATION,-1);
-            msg.obj = args;
-            mServiceHandler.sendMessage(msg);
-        }
+        msg.what = args.getInt(SimContactsService.OPERATION,-1);
+        msg.obj = args;
+        mServiceHandler.sendMessage(msg);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mSyncScheduler.shutdown();
+        mAccounts.stop();
         log("onDestroy service");
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        for (int i = 0; i < mPhoneNumber; i++) {
+            pw.println("sub " + i + ": state=" + SimSyncState.toString(mSyncState[i].get())
+                    + " simState=" + mSimState.get(i) + " newCard=" + isNewCard[i]);
+            pw.println("  capacity " + SimCapacityIndex.getInstance(i));
+        }
+        mMetrics.dump(pw, mPhoneNumber);
+        pw.println("write gate: " + ProviderWriteGate.getState());
+    }
+
+    private void startSync(int subscription) {
+        if (isMultiSimEnabled()) {
+            handleSimOp(subscription);
+        } else {
+            handleSimOp();
+        }
+    }
+
     private void handleSimOp(){
         log("handleSimOp()");
         compareAndSaveIccid(DEFAULT_SUB);
         if (isNewCardInserted(DEFAULT_SUB)) {
             // deleteDatabaseSimContacts();
             createSimAccountIfNotExist(DEFAULT_SUB);
-            querySimContacts();
         } else {
             createSimAccountIfNotExist(DEFAULT_SUB);
-            querySimContacts();
         }
+        mSyncScheduler.schedule(DEFAULT_SUB, new SimSyncJob(DEFAULT_SUB));
     }
 
     private void handleSimOp(int subscription){
         log("handleSimOp() at sub " + subscription);
         compareAndSaveIccid(subscription);
-        isSimOperationInprocess[subscription] = true;
         if (isNewCardInserted(subscription)) {
             log("This is a new card at sub: " + subscription);
             // deleteDatabaseSimContacts(subscription);
             createSimAccountIfNotExist(subscription);
-            querySimContacts(subscription);
-
         } else {
             createSimAccountIfNotExist(subscription);
-            querySimContacts(subscription);
         }
+        mSyncScheduler.schedule(subscription, new SimSyncJob(subscription));
     }
 
     /* private void handleNoSim(int subscription) {
@@ -309,25 +360,34 @@ public class SimContactsService extends Service {
         deleteSimAccount(subscription);
     } */
 
-    private int getPhoneCount() {
-        return TelephonyManager.getDefault().getPhoneCount();
-    }
-
-    private boolean  isMultiSimEnabled() {
-        return TelephonyManager.getDefault().isMultiSimEnabled();
+    /**
+     * Shows the contacts of the card last seen in the slot before the card
+     * can be read. The account is made visible right away and the snapshot
+     * of that card is imported if its contacts are missing; the sync pass
+     * that follows ICC_LOADED then applies only what changed on the card.
+     */
+    private void publishCachedContacts(int subscription) {
+        final String cardId = mPrefs.getString(IMSI[subscription], "");
+        if (TextUtils.isEmpty(cardId)) {
+            return;
+        }
+        log("publish cached contacts of the last card at sub " + subscription);
+        createSimAccountIfNotExist(isMultiSimEnabled() ? subscription : DEFAULT_SUB);
+        mSyncScheduler.schedule(subscription, new SimRestoreJob(subscription, cardId));
     }
 
-    private boolean hasIccCard(int subscription) {
-        return TelephonyManager.getDefault().hasIccCard(subscription);
+    private int getPhoneCount() {
+        return mTopology.getPhoneCount();
     }
 
-    private boolean hasIccCard() {
-        return TelephonyManager.getDefault().hasIccCard();
+    private boolean  isMultiSimEnabled() {
+        return mTopology.isMultiSimEnabled();
     }
 
     private void compareAndSaveIccid(int subscription) {
         String oldImsi = mPrefs.getString(IMSI[subscription],"");
         String newImsi = TelephonyManager.getDefault().getSubscriberId(subscription);
+        mCardId[subscription] = newImsi;
         if (!oldImsi.equals(newImsi)) {
             Editor editor = mPrefs.edit();
             editor.putString(IMSI[subscription], newImsi);
@@ -405,7 +465,7 @@ public class SimContactsService extends Service {
         }
     }
 
-    private void deleteSimAccount(int subscription) {
+    private String getSimAccountName(int subscription) {
         String accountName = null;
         if (isMultiSimEnabled()) {
             if(subscription == SUB1)
@@ -415,12 +475,16 @@ public class SimContactsService extends Service {
         } else {
             accountName = SimContactsConstants.SIM_NAME;
         }
-        Account accounts[] = getSimAccounts();
-        for (Account account: accounts){
-            if (account.name.equals(accountName)){
-                accountManager.removeAccount(account,null,null);
-                log("deleteSimAccount account is " +account );
-            }
+        return accountName;
+    }
+
+    private void deleteSimAccount(int subscription) {
+        Account account = mAccounts.get(getSimAccountName(subscription),
+                SimContactsConstants.ACCOUNT_TYPE_SIM);
+        if (account != null) {
+            accountManager.removeAccount(account,null,null);
+            mAccounts.onRemoved(account);
+            log("deleteSimAccount account is " +account );
         }
     }
 
@@ -486,36 +550,11 @@ public class SimContactsService extends Service {
     }
 
     protected  Account[] getSimAccounts() {
-        return accountManager
-                .getAccountsByType(SimContactsConstants.ACCOUNT_TYPE_SIM);
-    }
-
-    private  Account getSimAccount(int subscription) {
-        Account[] accounts = getSimAccounts();
-            if (isMultiSimEnabled()){
-                for (Account account: accounts) {
-                    if (subscription == SUB1 &&
-                        SimContactsConstants.SIM_NAME_1.equals(account.name)) {
-                        return account;
-                    } else if (subscription == SUB2 &&
-                        SimContactsConstants.SIM_NAME_2.equals(account.name)) {
-                        return account;
-                    }
-                }
-            } else {
-                for (Account account: accounts) {
-                    if(SimContactsConstants.SIM_NAME.equals(account.name)){
-                        return account;
-                    }
-                }
-            }
-            log("cannot get sim account of sub " + subscription);
-            return null;
+        return mAccounts.getAccounts(SimContactsConstants.ACCOUNT_TYPE_SIM);
     }
 
     protected  Account[] getPhoneAccounts() {
-        return accountManager
-                .getAccountsByType(SimContactsConstants.ACCOUNT_TYPE_PHONE);
+        return mAccounts.getAccounts(SimContactsConstants.ACCOUNT_TYPE_PHONE);
     }
 
     private void startAuthenticatorService(int subscription, String accoutType) {
@@ -526,83 +565,21 @@ public class SimContactsService extends Service {
     }
 
     private boolean hasLocalAccount(String accoutName, String accountType ) {
-        if (SimContactsConstants.ACCOUNT_TYPE_PHONE.equals(accountType)) {
-            log("account type is " + SimContactsConstants.ACCOUNT_TYPE_PHONE);
-            Account accounts[] = getPhoneAccounts();
-            for (Account account: accounts){
-                if(account.name.equals(accoutName)){
-                    log("hasLocalAccount() account is " +account );
-                    return true;
-                }
-            }
-            return false;
-        } else if (SimContactsConstants.ACCOUNT_TYPE_SIM.equals(accountType)) {
-            Account accounts[] = getSimAccounts();
-            for (Account account: accounts){
-                if(account.name.equals(accoutName)){
-                    log("hasLocalAccount() account is " +account );
-                    return true;
-                }
-            }
-            return false;
-        }
-        return false;
-
-    }
-
-     private void querySimContacts() {
-        Intent intent = new Intent();
-        intent.setData(Uri.parse(SimContactsConstants.SIM_URI));
-        Uri uri = intent.getData();
-        if (DBG) log("querySimContacts: starting an async query 1");
-        mQuerySimHandler[DEFAULT_SUB].startQuery(QUERY_TOKEN, null, uri, COLUMN_NAMES,
-                null, null, null);
-    }
-
-    private void querySimContacts(int subscription) {
-        Intent intent = new Intent();
-        if(subscription != SUB1 && subscription != SUB2){
-            isSimOperationInprocess[subscription] = false;
-            sendPendingSimRefreshUpdateMsg(subscription);
-            return;
-        }
-        int[] subId = SubscriptionManager.getSubId(subscription);
-        if (subId != null && TelephonyManager.getDefault().isMultiSimEnabled()) {
-            intent.setData(Uri.parse(SimContactsConstants.SIM_SUB_URI + subId[0]));
-        } else {
-            intent.setData(Uri.parse(SimContactsConstants.SIM_URI));
-        }
-        Uri uri = intent.getData();
-        if (DBG) log("querySimContacts: starting an async query more");
-        mQuerySimHandler[subscription].startQuery(QUERY_TOKEN, null, uri, COLUMN_NAMES,
-                null, null, null);
+        return mAccounts.contains(accoutName, accountType);
     }
 
-    private void queryDatabaseSimContactsID() {
-        Uri uri = RawContacts.CONTENT_URI;
-        String orderBy = "_ID asc";
-        if (DBG) log("queryDatabaseSimContacts: starting an async query");
-        mQueryDatabaseHandler[0].startQuery(QUERY_TOKEN_DATABASE, null,
-                uri, CONTACTS_ID_PROJECTION,
-                SIM_DATABASE_SELECTION, SIM_DATABASE_SELECTARGS, orderBy);
+    private Uri getSimUri(int subscription) {
+        return mTopology.getIccUri(isMultiSimEnabled() ? subscription : DEFAULT_SUB);
     }
 
-    private void queryDatabaseSimContactsID(int subscription) {
-        Uri uri = RawContacts.CONTENT_URI;
-        String orderBy = "_ID asc";
-        if (DBG) log("queryDatabaseSimContacts: starting an async query");
-        if (subscription == 0) {
-            mQueryDatabaseHandler[subscription].startQuery(QUERY_TOKEN_DATABASE_SUB1, null,
-                    uri, CONTACTS_ID_PROJECTION,
-                    SIM_DATABASE_SELECTION, SIM_DATABASE_SELECTARGS_SUB1, orderBy);
-        } else if (subscription == 1) {
-            mQueryDatabaseHandler[subscription].startQuery(QUERY_TOKEN_DATABASE_SUB2, null,
-                    uri, CONTACTS_ID_PROJECTION,
-                    SIM_DATABASE_SELECTION, SIM_DATABASE_SELECTARGS_SUB2, orderBy);
+    private String[] getSimDatabaseSelectionArgs(int subscription) {
+        if (!isMultiSimEnabled()) {
+            return SIM_DATABASE_SELECTARGS;
         }
+        return subscription == SUB2 ? SIM_DATABASE_SELECTARGS_SUB2
+                : SIM_DATABASE_SELECTARGS_SUB1;
     }
 
-
     /* private void deleteDatabaseSimContacts() {
             Uri uri = ContactsContract.RawContacts.CONTENT_URI;
 
@@ -636,358 +613,503 @@ public class SimContactsService extends Service {
         }
     } */
 
-    private void addAllSimContactsIntoDatabase(int subscription) {
-        ImportAllSimContactsThread thread = new ImportAllSimContactsThread(subscription);
-        thread.start();
-
+    protected static void log(String msg) {
+        if (DBG)  Log.d(TAG, msg);
     }
 
-    private void addAllSimContactsIntoDatabase() {
-        ImportAllSimContactsThread thread = new ImportAllSimContactsThread();
-        thread.start();
+    private static ArrayList<SimRecord> readSimRecords(final Cursor cursor) {
+        final ArrayList<SimRecord> records = new ArrayList<SimRecord>(cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            records.add(readSimRecord(cursor));
+        }
+        return records;
+    }
 
+    private static SimRecord readSimRecord(final Cursor cursor) {
+        final SimRecord record = new SimRecord(cursor.getInt(INDEX_COLUMN),
+                cursor.getString(NAME_COLUMN), cursor.getString(NUMBER_COLUMN),
+                SimRecord.normalizeList(cursor.getString(EMAILS_COLUMN)),
+                SimRecord.normalizeList(cursor.getString(ANRS_COLUMN)));
+        if (DBG) log(" readSimRecord: " + record);
+        return record;
     }
 
-    protected class QuerySimHandler extends AsyncQueryHandler {
-        private int mSubscription = 0;
-        public QuerySimHandler(ContentResolver cr, int subscription) {
-            super(cr);
+    /**
+     * One sync pass of a subscription. It reads the ADN records, then either
+     * imports all of them for a new card or reconciles them with the stored
+     * contacts. Each subscription has its own lane, so on a dual-SIM device
+     * both cards are read at the same time, and only their provider writes
+     * take turns through {@link ProviderWriteGate}.
+     */
+    private class SimSyncJob implements SimSyncScheduler.Job {
+        private final int mSubscription;
+        private final boolean mNewCard;
+        private final Account mAccount;
+        private final Uri mSimUri;
+        private final String[] mSelectionArgs;
+        private long mDbQueryTime;
+
+        public SimSyncJob(int subscription) {
             mSubscription = subscription;
-        }
-
-        public QuerySimHandler(ContentResolver cr) {
-            super(cr);
+            mNewCard = isNewCardInserted(subscription);
+            // The account of a new card may still be on its way to the
+            // AccountManager, but the rows only need its name and type.
+            mAccount = new Account(getSimAccountName(subscription),
+                    SimContactsConstants.ACCOUNT_TYPE_SIM);
+            mSimUri = getSimUri(subscription);
+            mSelectionArgs = getSimDatabaseSelectionArgs(subscription);
         }
 
         @Override
-        protected void onQueryComplete(int token, Object cookie, Cursor c) {
-            if (c == null) {
-                log(" QuerySimHandler onQueryComplete: cursor is null");
-                isSimOperationInprocess[mSubscription] = false;
-                sendPendingSimRefreshUpdateMsg(mSubscription);
-                return;
-            }
-            log(" QuerySimHandler onQueryComplete: cursor.count=" + c.getCount());
-
-            mSimCursor[mSubscription] = c;
-            if (isNewCardInserted(mSubscription)){
-                if (isMultiSimEnabled()) {
-                    addAllSimContactsIntoDatabase(mSubscription);
-                } else {
-                    addAllSimContactsIntoDatabase();
+        public void run(CancellationSignal signal) {
+            Cursor databaseCursor = null;
+            mMetrics.increment(mSubscription, SimSyncMetrics.COUNT_PASSES, 1);
+            try {
+                if (mSimUri == null) {
+                    return;
                 }
-            } else {
-                if (isMultiSimEnabled()) {
-                    queryDatabaseSimContactsID(mSubscription);
-                } else {
-                    queryDatabaseSimContactsID();
+                final ContentResolver resolver = mContext.getContentResolver();
+                if (DBG) log("querySimContacts: query " + mSimUri);
+                long start = SystemClock.elapsedRealtime();
+                final Cursor simCursor = resolver.query(mSimUri, COLUMN_NAMES, null, null, null);
+                if (simCursor == null) {
+                    log(" querySimContacts: cursor is null at sub " + mSubscription);
+                    mMetrics.increment(mSubscription, SimSyncMetrics.COUNT_FAILURES, 1);
+                    return;
+                }
+                final ArrayList<SimRecord> simRecords;
+                try {
+                    log(" querySimContacts: cursor.count=" + simCursor.getCount()
+                            + " at sub " + mSubscription);
+                    SimCapacityIndex.getInstance(mSubscription).load(
+                            mTopology.getSubId(mSubscription), simCursor.getCount());
+                    if (mNewCard && !mPublishedFromSnapshot[mSubscription]) {
+                        endPhase(SimSyncMetrics.PHASE_ICC_QUERY, start);
+                        mSyncState[mSubscription].advance(SimSyncState.QUERYING_SIM,
+                                SimSyncState.APPLYING);
+                        importAll(resolver, simCursor, signal);
+                        return;
+                    }
+                    simRecords = readSimRecords(simCursor);
+                } finally {
+                    simCursor.close();
                 }
+                endPhase(SimSyncMetrics.PHASE_ICC_QUERY, start);
+                signal.throwIfCanceled();
+
+                mSyncState[mSubscription].advance(SimSyncState.QUERYING_SIM,
+                        SimSyncState.QUERYING_DB);
+                start = SystemClock.elapsedRealtime();
+                databaseCursor = resolver.query(RawContacts.CONTENT_URI,
+                        CONTACTS_ID_PROJECTION, SIM_SYNC_SELECTION, mSelectionArgs,
+                        "_ID asc");
+                if (databaseCursor == null) {
+                    log(" queryDatabaseSimContacts: cursor is null at sub " + mSubscription);
+                    mMetrics.increment(mSubscription, SimSyncMetrics.COUNT_FAILURES, 1);
+                    return;
+                }
+                log(" queryDatabaseSimContacts: cursor.count=" + databaseCursor.getCount()
+                        + " at sub " + mSubscription);
+                mDbQueryTime = SystemClock.elapsedRealtime() - start;
+                mSyncState[mSubscription].advance(SimSyncState.QUERYING_DB,
+                        SimSyncState.APPLYING);
+
+                final String digest = SimSnapshotStore.computeDigest(simRecords);
+                if (isSnapshotCurrent(mSubscription, digest, databaseCursor)) {
+                    log(" SimSyncJob sim contacts unchanged at sub " + mSubscription);
+                    mMetrics.recordPhase(mSubscription, SimSyncMetrics.PHASE_DB_QUERY,
+                            mDbQueryTime);
+                    mMetrics.increment(mSubscription, SimSyncMetrics.COUNT_UNCHANGED,
+                            simRecords.size());
+                } else if (reconcile(resolver, simRecords, databaseCursor, signal)) {
+                    saveSnapshot(mSubscription, simRecords);
+                }
+            } catch (OperationCanceledException e) {
+                mMetrics.increment(mSubscription, SimSyncMetrics.COUNT_CANCELED, 1);
+                throw e;
+            } finally {
+                if (databaseCursor != null) {
+                    databaseCursor.close();
+                }
+                discard();
             }
         }
 
         @Override
-        protected void onInsertComplete(int token, Object cookie,
-                                       Uri uri) {
+        public void discard() {
+            finishSync(mSubscription);
         }
 
-        @Override
-        protected void onUpdateComplete(int token, Object cookie, int result) {
+        private void endPhase(int phase, long start) {
+            mMetrics.recordPhase(mSubscription, phase, SystemClock.elapsedRealtime() - start);
         }
 
-        @Override
-        protected void onDeleteComplete(int token, Object cookie, int result) {
+        private void importAll(final ContentResolver resolver, final Cursor simCursor,
+                final CancellationSignal signal) {
+            final SimContactsImporter importer =
+                    new SimContactsImporter(resolver, mAccount, signal);
+            log("import sim contact to account: " + mAccount);
+            final long start = SystemClock.elapsedRealtime();
+            try {
+                new SimImportPipeline(importer,
+                        mSnapshotStore.openWriter(mSubscription, mCardId[mSubscription]),
+                        mSyncScheduler.getStageExecutor(), signal).run(simCursor);
+            } finally {
+                importer.resumeAggregation();
+                endPhase(SimSyncMetrics.PHASE_APPLY, start);
+                recordImport(importer);
+            }
         }
-    }
 
-    private void UpdateSimDatabaseInPhone(int subscription) {
-        UpdateContactsThread thread =
-            new UpdateContactsThread(subscription);
-        thread.start();
-    }
-
-    private class QueryDatabaseHandler extends AsyncQueryHandler {
-
-        private int mSubscription = 0;
-        public QueryDatabaseHandler(ContentResolver cr, int subscription) {
-            super(cr);
-            mSubscription = subscription;
-        }
-        public QueryDatabaseHandler(ContentResolver cr) {
-            super(cr);
+        private void recordImport(SimContactsImporter importer) {
+            mMetrics.increment(mSubscription, SimSyncMetrics.COUNT_INSERTED,
+                    importer.getImportedCount());
+            mMetrics.increment(mSubscription, SimSyncMetrics.COUNT_PROVIDER_OPS,
+                    importer.getAppliedOperationCount());
+            mMetrics.increment(mSubscription, SimSyncMetrics.COUNT_FAILURES,
+                    importer.getFailedCount());
         }
 
-        @Override
-        protected void onQueryComplete(int token, Object cookie, Cursor c) {
-            if (c == null) {
-                log(" QueryDatabaseHandler onQueryComplete: cursor is null");
-                isSimOperationInprocess[mSubscription] = false;
-                sendPendingSimRefreshUpdateMsg(mSubscription);
-                return;
+        /**
+         * Applies the difference between the SIM and the stored contacts.
+         *
+         * A raw contact whose SIM index and checksum still match the record
+         * in that slot is unchanged and never loaded. Only the remaining
+         * raw contacts have their data rows read and go through the diff.
+         *
+         * @return true if every pending insert reached the provider
+         */
+        private boolean reconcile(final ContentResolver resolver,
+                final ArrayList<SimRecord> simRecords, final Cursor databaseCursor,
+                final CancellationSignal signal) {
+            long start = SystemClock.elapsedRealtime();
+            final HashMap<Integer, Integer> positionByIndex =
+                    new HashMap<Integer, Integer>(simRecords.size());
+            for (int i = 0; i < simRecords.size(); i++) {
+                final int index = simRecords.get(i).index;
+                if (index >= 0) {
+                    positionByIndex.put(index, i);
+                }
             }
-            log(" QueryDatabaseHandler onQueryComplete: cursor.count=" +
-                c.getCount() +"sub is " +mSubscription);
-            mDatabaseCursor[mSubscription] = c;
-            UpdateSimDatabaseInPhone(mSubscription);
-        }
+            final boolean[] verified = new boolean[simRecords.size()];
+            int verifiedCount = 0;
+            final ArrayList<SimContactsDiff.DatabaseRow> rows =
+                    new ArrayList<SimContactsDiff.DatabaseRow>();
+            databaseCursor.moveToPosition(-1);
+            while (databaseCursor.moveToNext()) {
+                final long contactId = databaseCursor.getLong(CONTACT_ID_COLUMN_COLUMN);
+                final long rawContactId = databaseCursor.getLong(RAW_CONTACT_ID_COLUMN);
+                final int index =
+                        SimRecord.parseIndex(databaseCursor.getString(SOURCE_ID_COLUMN));
+                final Integer position = index >= 0 ? positionByIndex.get(index) : null;
+                if (databaseCursor.getInt(DIRTY_COLUMN) != 0) {
+                    // A local edit or delete waiting for the SyncAdapter to
+                    // upload it; leave both the row and its slot alone until
+                    // then.
+                    if (position != null && !verified[position]) {
+                        verified[position] = true;
+                        verifiedCount++;
+                    }
+                    continue;
+                }
+                if (position != null && !verified[position] && simRecords.get(position)
+                        .getChecksum().equals(databaseCursor.getString(SYNC1_COLUMN))) {
+                    verified[position] = true;
+                    verifiedCount++;
+                    continue;
+                }
+                rows.add(new SimContactsDiff.DatabaseRow(rawContactId, contactId,
+                        new SimRecord(index, null, null, null, null)));
+            }
+            final ArrayList<SimRecord> unverified =
+                    new ArrayList<SimRecord>(simRecords.size() - verifiedCount);
+            for (int i = 0; i < simRecords.size(); i++) {
+                if (!verified[i]) {
+                    unverified.add(simRecords.get(i));
+                }
+            }
+            log(" SimSyncJob " + verifiedCount + " contacts verified by checksum, load "
+                    + rows.size() + " at sub " + mSubscription);
+            mMetrics.increment(mSubscription, SimSyncMetrics.COUNT_UNCHANGED, verifiedCount);
+
+            if (!rows.isEmpty()) {
+                final HashMap<Long, SimRecord> storedRecords;
+                if (rows.size() * 2 > databaseCursor.getCount()) {
+                    // Mostly untagged, e.g. imported before tags existed.
+                    storedRecords = SimContactsOperation.loadSimAccountRecords(resolver,
+                            getSimAccountName(mSubscription));
+                } else {
+                    final long[] rawContactIds = new long[rows.size()];
+                    for (int i = 0; i < rawContactIds.length; i++) {
+                        rawContactIds[i] = rows.get(i).rawContactId;
+                    }
+                    storedRecords = SimContactsOperation.loadSimAccountRecords(resolver,
+                            getSimAccountName(mSubscription), rawContactIds);
+                }
+                for (int i = 0; i < rows.size(); i++) {
+                    final SimContactsDiff.DatabaseRow row = rows.get(i);
+                    final SimRecord stored = storedRecords.get(row.rawContactId);
+                    if (stored != null) {
+                        rows.set(i, new SimContactsDiff.DatabaseRow(row.rawContactId,
+                                row.contactId, new SimRecord(row.record.index, stored.name,
+                                        stored.number, stored.emails, stored.anrs)));
+                    }
+                }
+            }
+            mMetrics.recordPhase(mSubscription, SimSyncMetrics.PHASE_DB_QUERY,
+                    mDbQueryTime + SystemClock.elapsedRealtime() - start);
+
+            start = SystemClock.elapsedRealtime();
+            final SimContactsDiff diff = SimContactsDiff.compute(unverified, rows);
+            endPhase(SimSyncMetrics.PHASE_DIFF, start);
+            log(" SimSyncJob diff at sub " + mSubscription + ": " + diff);
+            mMetrics.increment(mSubscription, SimSyncMetrics.COUNT_UNCHANGED, diff.unchanged);
+
+            start = SystemClock.elapsedRealtime();
+            for (SimContactsDiff.Update update : diff.updates) {
+                signal.throwIfCanceled();
+                if (DBG) log(" SimSyncJob mAfter is : " + update.record + " mBefore is: "
+                     + update.row.record + " rawContactId is: " + update.row.rawContactId);
+                recordWrite(SimSyncMetrics.COUNT_UPDATED, 1, actuallyUpdateOneSimContact(
+                        resolver, update.row.record, update.record, update.row.rawContactId));
+            }
+            if (!diff.matched.isEmpty()) {
+                // Same content, but the record moved to another slot.
+                final int operations = updateSyncTags(resolver, diff.matched);
+                mMetrics.increment(mSubscription, operations < 0
+                        ? SimSyncMetrics.COUNT_FAILURES : SimSyncMetrics.COUNT_PROVIDER_OPS,
+                        operations < 0 ? 1 : operations);
+            }
+            final long updateTime = SystemClock.elapsedRealtime() - start;
 
-        @Override
-        protected void onInsertComplete(int token, Object cookie,
-                                       Uri uri) {
-        }
+            signal.throwIfCanceled();
+            start = SystemClock.elapsedRealtime();
+            recordWrite(SimSyncMetrics.COUNT_DELETED, diff.deletes.size(),
+                    deleteSimContactsFromDatabase(resolver, diff.deletes));
+            endPhase(SimSyncMetrics.PHASE_DELETE, start);
 
-        @Override
-        protected void onUpdateComplete(int token, Object cookie, int result) {
+            start = SystemClock.elapsedRealtime();
+            final SimContactsImporter importer =
+                    new SimContactsImporter(resolver, mAccount, signal);
+            try {
+                for (SimRecord record : diff.inserts) {
+                    importer.add(record);
+                }
+                return importer.finish() == diff.inserts.size();
+            } finally {
+                importer.resumeAggregation();
+                mMetrics.recordPhase(mSubscription, SimSyncMetrics.PHASE_APPLY,
+                        updateTime + SystemClock.elapsedRealtime() - start);
+                recordImport(importer);
+            }
         }
 
-        @Override
-        protected void onDeleteComplete(int token, Object cookie, int result) {
-            log("Complete delete database sim contacts");
+        /**
+         * @param operations number of provider operations applied, or -1 if
+         *        the batch failed
+         */
+        private void recordWrite(int counter, int records, int operations) {
+            if (operations < 0) {
+                mMetrics.increment(mSubscription, SimSyncMetrics.COUNT_FAILURES, records);
+            } else if (operations > 0) {
+                mMetrics.increment(mSubscription, counter, records);
+                mMetrics.increment(mSubscription, SimSyncMetrics.COUNT_PROVIDER_OPS, operations);
+            }
         }
     }
 
-    protected static void log(String msg) {
-        if (DBG)  Log.d(TAG, msg);
-    }
-
-    private class ImportAllSimContactsThread extends Thread {
-        private int mSubscription = 0;
+    /**
+     * Imports the snapshot of the last card of a subscription when the
+     * provider holds none of its contacts, e.g. after the contacts storage
+     * was cleared. The account may not be registered yet, so the rows are
+     * written for its name and type directly.
+     *
+     * The job ignores cancellation: it is short and the sync pass queued
+     * behind it relies on the rows it writes.
+     */
+    private class SimRestoreJob implements SimSyncScheduler.Job {
+        private final int mSubscription;
+        private final String mCardId;
 
-        private Account mAccount;
-        public ImportAllSimContactsThread(int subscription) {
-            super("ImportAllSimContactsThread");
+        public SimRestoreJob(int subscription, String cardId) {
             mSubscription = subscription;
-            mAccount = getSimAccount(mSubscription);
-        }
-
-        public ImportAllSimContactsThread() {
-            super("ImportAllSimContactsThread");
-            mAccount = getSimAccount(mSubscription);
+            mCardId = cardId;
         }
 
         @Override
-        public void run() {
-            synchronized(this){
-                final ContentValues emptyContentValues = new ContentValues();
-                final ContentResolver resolver = mContext.getContentResolver();
-
-                log("import sim contact to account: " + mAccount);
-                mSimCursor[mSubscription].moveToPosition(-1);
-                while (mSimCursor[mSubscription].moveToNext()) {
-                    actuallyImportOneSimContact(mSimCursor[mSubscription], resolver, mAccount);
+        public void run(CancellationSignal signal) {
+            final long start = SystemClock.elapsedRealtime();
+            final SimSnapshotStore.Snapshot snapshot = mSnapshotStore.read(mSubscription);
+            if (snapshot == null || !mCardId.equals(snapshot.cardId)
+                    || snapshot.records.isEmpty()) {
+                log("no snapshot of the last card at sub " + mSubscription);
+                return;
+            }
+            final ContentResolver resolver = mContext.getContentResolver();
+            final Cursor cursor = resolver.query(RawContacts.CONTENT_URI,
+                    new String[] { RawContacts._ID }, SIM_DATABASE_SELECTION,
+                    getSimDatabaseSelectionArgs(mSubscription), null);
+            if (cursor == null) {
+                return;
+            }
+            try {
+                if (cursor.getCount() > 0) {
+                    log(" SimRestoreJob " + cursor.getCount()
+                            + " contacts already published at sub " + mSubscription);
+                    return;
                 }
-                mSimCursor[mSubscription].close();
-
-                isSimOperationInprocess[mSubscription] = false;
-                sendPendingSimRefreshUpdateMsg(mSubscription);
+            } finally {
+                cursor.close();
+            }
+            final SimContactsImporter importer = new SimContactsImporter(resolver,
+                    new Account(getSimAccountName(mSubscription),
+                            SimContactsConstants.ACCOUNT_TYPE_SIM));
+            try {
+                for (SimRecord record : snapshot.records) {
+                    importer.add(record);
+                }
+                importer.finish();
+            } finally {
+                importer.resumeAggregation();
             }
+            mPublishedFromSnapshot[mSubscription] = importer.getImportedCount() > 0;
+            mMetrics.increment(mSubscription, SimSyncMetrics.COUNT_INSERTED,
+                    importer.getImportedCount());
+            log(" SimRestoreJob published " + importer.getImportedCount()
+                    + " cached contacts in " + (SystemClock.elapsedRealtime() - start)
+                    + "ms at sub " + mSubscription);
         }
 
-    }
-
-    private static void actuallyImportOneSimContact(
-            final Cursor cursor, final ContentResolver resolver, Account account) {
-
-        final String name = cursor.getString(NAME_COLUMN);
-        final String phoneNumber = cursor.getString(NUMBER_COLUMN);
-        final String emailAddresses = cursor.getString(EMAILS_COLUMN);
-        final String anrs = cursor.getString(ANRS_COLUMN);
-        final String[] emailAddressArray;
-        final String[] anrArray;
-        if (!TextUtils.isEmpty(emailAddresses)) {
-            emailAddressArray = emailAddresses.split(",");
-        } else {
-            emailAddressArray = null;
-        }
-        if (!TextUtils.isEmpty(anrs)) {
-            anrArray = anrs.split(",");
-        } else {
-            anrArray = null;
+        @Override
+        public void discard() {
         }
-        log(" actuallyImportOneSimContact: name= " + name +
-            ", phoneNumber= " + phoneNumber +", emails= "+ emailAddresses
-            +", anrs= "+ anrs + ", account is " + account);
+    }
 
-        final ArrayList<ContentProviderOperation> operationList =
-            new ArrayList<ContentProviderOperation>();
-        ContentProviderOperation.Builder builder =
-            ContentProviderOperation.newInsert(RawContacts.CONTENT_URI);
-        builder.withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_SUSPENDED);
-        if (account != null) {
-            builder.withValue(RawContacts.ACCOUNT_NAME, account.name);
-            builder.withValue(RawContacts.ACCOUNT_TYPE, account.type);
+    /**
+     * Returns true if the card still holds the records of the last snapshot
+     * and every stored raw contact is tagged with one of them. A raw contact
+     * whose upload the card refused has lost its checksum, so the pass then
+     * reconciles and restores the card content.
+     */
+    private boolean isSnapshotCurrent(int subscription, String digest, Cursor databaseCursor) {
+        final SimSnapshotStore.Snapshot snapshot = mSnapshotStore.read(subscription);
+        if (snapshot == null
+                || !snapshot.cardId.equals(mCardId[subscription])
+                || !snapshot.digest.equals(digest)
+                || snapshot.records.size() != databaseCursor.getCount()) {
+            return false;
         }
-        operationList.add(builder.build());
-
-        builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-        builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, 0);
-        builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
-        builder.withValue(StructuredName.DISPLAY_NAME, name);
-        operationList.add(builder.build());
-
-        builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-        builder.withValueBackReference(Phone.RAW_CONTACT_ID, 0);
-        builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
-        builder.withValue(Phone.TYPE, Phone.TYPE_MOBILE);
-        builder.withValue(Phone.NUMBER, phoneNumber);
-        builder.withValue(Data.IS_PRIMARY, 1);
-        operationList.add(builder.build());
-
-        if (anrArray != null) {
-            for (String anr :anrArray) {
-                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-                builder.withValueBackReference(Phone.RAW_CONTACT_ID, 0);
-                builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
-                builder.withValue(Phone.TYPE, Phone.TYPE_HOME);
-                builder.withValue(Phone.NUMBER, anr);
-                //builder.withValue(Data.IS_PRIMARY, 1);
-                operationList.add(builder.build());
+        final HashMap<Integer, SimRecord> recordByIndex =
+                new HashMap<Integer, SimRecord>(snapshot.records.size());
+        for (SimRecord record : snapshot.records) {
+            if (record.index < 0 || recordByIndex.put(record.index, record) != null) {
+                return false;
             }
         }
-
-        if (emailAddresses != null) {
-            for (String emailAddress : emailAddressArray) {
-                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-                builder.withValueBackReference(Email.RAW_CONTACT_ID, 0);
-                builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
-                builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
-                builder.withValue(Email.ADDRESS, emailAddress);
-                operationList.add(builder.build());
+        databaseCursor.moveToPosition(-1);
+        while (databaseCursor.moveToNext()) {
+            // Each row has to claim a slot of its own.
+            final SimRecord record = recordByIndex.remove(
+                    SimRecord.parseIndex(databaseCursor.getString(SOURCE_ID_COLUMN)));
+            if (record == null) {
+                return false;
+            }
+            if (databaseCursor.getInt(DIRTY_COLUMN) == 0 && !record.getChecksum()
+                    .equals(databaseCursor.getString(SYNC1_COLUMN))) {
+                return false;
             }
         }
+        return true;
+    }
 
-        try {
-            resolver.applyBatch(ContactsContract.AUTHORITY, operationList);
-        } catch (RemoteException e) {
-            Log.e(TAG,String.format("%s: %s", e.toString(), e.getMessage()));
-        } catch (OperationApplicationException e) {
-            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-        }
+    private void saveSnapshot(int subscription, ArrayList<SimRecord> records) {
+        mSnapshotStore.write(subscription, mCardId[subscription], records);
     }
 
-    private class UpdateContactsThread extends Thread {
-        private int mSubscription = 0;
-        private Account mAccount;
-        private SimContactsOperation mSimContactsOperation;
-        public UpdateContactsThread(int subscription) {
-            super("LoadSimContactsInPhone");
-            mSubscription = subscription;
-            mAccount = getSimAccount(mSubscription);
-            mSimContactsOperation = new SimContactsOperation(mContext);
+    private void finishSync(int subscription) {
+        if (mSyncState[subscription].finish()) {
+            log("start pending sync pass at sub " + subscription);
+            mServiceHandler.obtainMessage(MSG_START_SYNC, subscription, 0).sendToTarget();
         }
+    }
 
-        @Override
-        public void run() {
-            synchronized(this){
-                final ContentResolver resolver = mContext.getContentResolver();
-                ContentValues mAfter = new ContentValues();
-                mDatabaseCursor[mSubscription].moveToPosition(-1);
-                mSimCursor[mSubscription].moveToPosition(-1);
-                while ((!mSimCursor[mSubscription].isLast()) && (!mDatabaseCursor[mSubscription].isLast())
-                        && mSimCursor[mSubscription].moveToNext() && mDatabaseCursor[mSubscription].moveToNext()) {
-                    final long contactId = mDatabaseCursor[mSubscription].getLong(CONTACT_ID_COLUMN_COLUMN);
-                    final long rawContactId = mDatabaseCursor[mSubscription].getLong(RAW_CONTACT_ID_COLUMN);
-                    ContentValues mBefore = mSimContactsOperation.getSimAccountValues(contactId);
-                    final String simName = mSimCursor[mSubscription].getString(NAME_COLUMN);
-                    final String simNumber = mSimCursor[mSubscription].getString(NUMBER_COLUMN);
-                    final String simEmails = mSimCursor[mSubscription].getString(EMAILS_COLUMN);
-                    final String simAnrs = mSimCursor[mSubscription].getString(ANRS_COLUMN);
-                    final String[] simEmailArray = simEmails == null? null: simEmails.split(",");
-                    final String[] simAnrArray = simAnrs == null? null: simAnrs.split(",");
-                    mAfter.clear();
-                    mAfter.put(SimContactsConstants.STR_TAG,simName);
-                    mAfter.put(SimContactsConstants.STR_NUMBER,simNumber);
-                    log(" UpdateContactsThread mAfter is : " + mAfter + " mBefore is: " +mBefore
-                         + " rawContactId is: " + rawContactId );
-
-                    if (!mBefore.equals(mAfter)) {
-
-                        actuallyUpdateOneSimContact(resolver,mBefore,mAfter,rawContactId);
-                    }
-                }
-                while(mDatabaseCursor[mSubscription].moveToNext()) {
-                    deleteOneSimContactFromDatabase(
-                        mDatabaseCursor[mSubscription],resolver,mSubscription);
-                }
-                if (mDatabaseCursor[mSubscription].getCount() == 0) {
-                    mSimCursor[mSubscription].moveToPosition(-1);
-                }
-                while (mSimCursor[mSubscription].moveToNext()) {
-                    actuallyImportOneSimContact(
-                        mSimCursor[mSubscription],resolver,mAccount);
-                }
 
-                mSimCursor[mSubscription].close();
-                mDatabaseCursor[mSubscription].close();
+    /**
+     * @return the number of operations applied, or -1 if the batch failed
+     */
+    private int actuallyUpdateOneSimContact(final ContentResolver resolver,
+            final SimRecord before, final SimRecord after, final long rawContactId) {
+        final ArrayList<ContentProviderOperation> operationList =
+                    new ArrayList<ContentProviderOperation>();
+        SimChangePlanner.plan(before, after, new SimChangePlanner.Sink() {
+            @Override
+            public void onChange(int field, int action, String value) {
+                operationList.add(buildChange(field, action, value, rawContactId).build());
+            }
+        });
+        operationList.add(buildSyncTags(rawContactId, after).build());
 
-                isSimOperationInprocess[mSubscription] = false;
-                sendPendingSimRefreshUpdateMsg(mSubscription);
+        log(" actuallyUpdateOneSimContact : update new values " + after);
+        return applyBatch(resolver, operationList);
+    }
 
+    /**
+     * Stores the SIM index and checksum of the records on the raw contacts
+     * they were matched to.
+     *
+     * @return the number of operations applied, or -1 if a batch failed
+     */
+    private static int updateSyncTags(final ContentResolver resolver,
+            final ArrayList<SimContactsDiff.Update> matches) {
+        final ArrayList<ContentProviderOperation> operationList =
+                new ArrayList<ContentProviderOperation>();
+        int applied = 0;
+        final int count = matches.size();
+        int limit = ProviderWriteGate.getOperationLimit(MAX_TAG_UPDATES_PER_BATCH);
+        for (int i = 0; i < count; i++) {
+            final SimContactsDiff.Update match = matches.get(i);
+            operationList.add(buildSyncTags(match.row.rawContactId, match.record)
+                    .withYieldAllowed(true).build());
+            if (operationList.size() == limit || i == count - 1) {
+                final int result = applyBatch(resolver, operationList);
+                if (result < 0) {
+                    return -1;
+                }
+                applied += result;
+                operationList.clear();
+                limit = ProviderWriteGate.getOperationLimit(MAX_TAG_UPDATES_PER_BATCH);
             }
         }
+        return applied;
     }
 
-    private void sendPendingSimRefreshUpdateMsg(int subscription) {
-        if (refreshQueue.get(subscription) != null) {
-            log("send refresh op msg since it is in refreshQueue at sub " +subscription);
-            Bundle args = new Bundle();
-            args.putInt(SimContactsConstants.SUB,subscription);
-            Message msg = mServiceHandler.obtainMessage();
-            msg.what = refreshQueue.get(subscription);
-            msg.obj = args;
-            mServiceHandler.sendMessage(msg);
-            refreshQueue.put(subscription,null);
-        }
+    private static Builder buildSyncTags(long rawContactId, SimRecord record) {
+        return ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(RAW_CONTACTS_SYNC_ADAPTER_URI, rawContactId))
+                .withValue(RawContacts.SOURCE_ID,
+                        record.index >= 0 ? String.valueOf(record.index) : null)
+                .withValue(RawContacts.SYNC1, record.getChecksum());
     }
 
-
-    private void actuallyUpdateOneSimContact(
-        final ContentResolver resolver,final ContentValues before, final ContentValues after, long rawContactId) {
-
-        final ArrayList<ContentProviderOperation> operationList =
-                    new ArrayList<ContentProviderOperation>();
-        ContentProviderOperation.Builder builder;
-        builder = buildDiff(before, after, SimContactsConstants.STR_TAG, rawContactId);
-        if (builder != null ) {
-            operationList.add(builder.build());
-        }
-        builder = buildDiff(before, after, SimContactsConstants.STR_NUMBER, rawContactId);
-        if (builder != null ) {
-            operationList.add(builder.build());
-        }
-        builder = buildDiff(before, after, SimContactsConstants.STR_ANRS, rawContactId);
-        if (builder != null ) {
-            operationList.add(builder.build());
+    private static int applyBatch(final ContentResolver resolver,
+            final ArrayList<ContentProviderOperation> operationList) {
+        if (operationList.isEmpty()) {
+            return 0;
         }
-        builder = buildDiff(before, after, SimContactsConstants.STR_EMAILS, rawContactId);
-        if (builder != null ) {
-            operationList.add(builder.build());
-        }
-
-        log(" actuallyUpdateOneSimContact : update new values " + after.toString());
         try {
-            resolver.applyBatch(ContactsContract.AUTHORITY, operationList);
+            ProviderWriteGate.applyBatch(resolver, operationList);
+            return operationList.size();
         } catch (RemoteException e) {
             Log.e(TAG,String.format("%s: %s", e.toString(), e.getMessage()));
         } catch (OperationApplicationException e) {
             Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
         }
+        return -1;
     }
 
-    private boolean isDeleted(final ContentValues before, final ContentValues after, String key) {
-        return !TextUtils.isEmpty(before.getAsString(key))&& TextUtils.isEmpty(after.getAsString(key));
-    }
-
-    private boolean isInserted(final ContentValues before, final ContentValues after, String key) {
-        return TextUtils.isEmpty(before.getAsString(key))&& !TextUtils.isEmpty(after.getAsString(key));
-    }
-
-    private boolean isUpdated(final ContentValues before, final ContentValues after, String key) {
-        return before.getAsString(key) != null && after.getAsString(key) != null &&
-            !before.getAsString(key).equals(after.getAsString(key));
-    }
-
-    private Builder buildUpdatedName(final ContentValues after, final long rawContactId) {
-        Builder builder = ContentProviderOperation.newUpdate(Data.CONTENT_URI);
+    private Builder buildUpdatedName(final String value, final long rawContactId) {
+        Builder builder = ContentProviderOperation.newUpdate(DATA_SYNC_ADAPTER_URI);
         String nameSelection = StructuredName.RAW_CONTACT_ID + "=? AND " +Data.MIMETYPE + "=?";
         String [] nameSelectionArg =
                 new String [] {String.valueOf(rawContactId), StructuredName.CONTENT_ITEM_TYPE};
@@ -997,12 +1119,12 @@ public class SimContactsService extends Service {
         builder.withValue(StructuredName.PREFIX, null);
         builder.withValue(StructuredName.MIDDLE_NAME, null);
         builder.withValue(StructuredName.SUFFIX, null);
-        builder.withValue(StructuredName.DISPLAY_NAME, after.getAsString(SimContactsConstants.STR_TAG));
+        builder.withValue(StructuredName.DISPLAY_NAME, value);
         return builder;
     }
 
-    private Builder buildDeletedName(final ContentValues after,final long rawContactId) {
-        Builder builder = ContentProviderOperation.newDelete(Data.CONTENT_URI);
+    private Builder buildDeletedName(final long rawContactId) {
+        Builder builder = ContentProviderOperation.newDelete(DATA_SYNC_ADAPTER_URI);
         String nameSelection = StructuredName.RAW_CONTACT_ID + "=? AND " +Data.MIMETYPE + "=?";
         String [] nameSelectionArg =
                 new String [] {String.valueOf(rawContactId), StructuredName.CONTENT_ITEM_TYPE};
@@ -1010,17 +1132,16 @@ public class SimContactsService extends Service {
         return builder;
     }
 
-    private Builder buildInsertedName(final ContentValues after,final long rawContactId) {
-        Builder builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-        String nameSelection = StructuredName.RAW_CONTACT_ID + "=? AND " +Data.MIMETYPE + "=?";
+    private Builder buildInsertedName(final String value, final long rawContactId) {
+        Builder builder = ContentProviderOperation.newInsert(DATA_SYNC_ADAPTER_URI);
         builder.withValue(StructuredName.RAW_CONTACT_ID, rawContactId);
         builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
-        builder.withValue(StructuredName.DISPLAY_NAME, after.getAsString(SimContactsConstants.STR_TAG));
+        builder.withValue(StructuredName.DISPLAY_NAME, value);
         return builder;
     }
 
-    private Builder buildUpdatedNumber(final ContentValues after, final long rawContactId) {
-        Builder builder = ContentProviderOperation.newUpdate(Data.CONTENT_URI);
+    private Builder buildUpdatedNumber(final String value, final long rawContactId) {
+        Builder builder = ContentProviderOperation.newUpdate(DATA_SYNC_ADAPTER_URI);
         String selection = Phone.RAW_CONTACT_ID + "=? AND " +Data.MIMETYPE + "=? AND "
                                +Phone.TYPE + "=?";
         String [] selectionArg =
@@ -1029,12 +1150,12 @@ public class SimContactsService extends Service {
         builder.withSelection(selection, selectionArg);
         builder.withValue(Phone.TYPE, Phone.TYPE_MOBILE);
         builder.withValue(Data.IS_PRIMARY, 1);
-        builder.withValue(Phone.NUMBER, after.getAsString(SimContactsConstants.STR_NUMBER));
+        builder.withValue(Phone.NUMBER, value);
         return builder;
     }
 
-    private Builder buildDeletedNumber(final ContentValues after,final long rawContactId) {
-        Builder builder = ContentProviderOperation.newDelete(Data.CONTENT_URI);
+    private Builder buildDeletedNumber(final long rawContactId) {
+        Builder builder = ContentProviderOperation.newDelete(DATA_SYNC_ADAPTER_URI);
         String selection = Phone.RAW_CONTACT_ID + "=? AND " +Data.MIMETYPE + "=? AND "
                                +Phone.TYPE + "=?";
         String [] selectionArg =
@@ -1044,30 +1165,18 @@ public class SimContactsService extends Service {
         return builder;
     }
 
-    private Builder buildInsertedNumber(final ContentValues after,final long rawContactId) {
-        Builder builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+    private Builder buildInsertedNumber(final String value, final long rawContactId) {
+        Builder builder = ContentProviderOperation.newInsert(DATA_SYNC_ADAPTER_URI);
         builder.withValue(Phone.RAW_CONTACT_ID, rawContactId);
         builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
         builder.withValue(Phone.TYPE, Phone.TYPE_MOBILE);
         builder.withValue(Data.IS_PRIMARY, 1);
-        builder.withValue(Phone.NUMBER, after.getAsString(SimContactsConstants.STR_NUMBER));
-        return builder;
-    }
-
-    private Builder buildUpdatedAnr(final ContentValues after, final long rawContactId) {
-        Builder builder = ContentProviderOperation.newUpdate(Data.CONTENT_URI);
-        String selection = Phone.RAW_CONTACT_ID + "=? AND " +Data.MIMETYPE + "=? AND "
-                               +Phone.TYPE + "=?";
-        String [] selectionArg =
-                new String [] {String.valueOf(rawContactId), Phone.CONTENT_ITEM_TYPE, String.valueOf(Phone.TYPE_HOME)};
-        builder.withSelection(selection, selectionArg);
-        builder.withValue(Phone.TYPE, Phone.TYPE_HOME);
-        builder.withValue(Phone.NUMBER, after.getAsString(SimContactsConstants.STR_ANRS));
+        builder.withValue(Phone.NUMBER, value);
         return builder;
     }
 
-    private Builder buildDeletedAnr(final ContentValues after,final long rawContactId) {
-        Builder builder = ContentProviderOperation.newDelete(Data.CONTENT_URI);
+    private Builder buildDeletedAnr(final long rawContactId) {
+        Builder builder = ContentProviderOperation.newDelete(DATA_SYNC_ADAPTER_URI);
         String selection = Phone.RAW_CONTACT_ID + "=? AND " +Data.MIMETYPE + "=? AND "
                                +Phone.TYPE + "=?";
         String [] selectionArg =
@@ -1076,89 +1185,103 @@ public class SimContactsService extends Service {
         return builder;
     }
 
-    private Builder buildInsertedAnr(final ContentValues after,final long rawContactId) {
-        Builder builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+    private Builder buildInsertedAnr(final String value, final long rawContactId) {
+        Builder builder = ContentProviderOperation.newInsert(DATA_SYNC_ADAPTER_URI);
         builder.withValue(Phone.RAW_CONTACT_ID, rawContactId);
         builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
         builder.withValue(Phone.TYPE, Phone.TYPE_HOME);
-        builder.withValue(Phone.NUMBER, after.getAsString(SimContactsConstants.STR_ANRS));
+        builder.withValue(Phone.NUMBER, value);
         return builder;
     }
 
-    private Builder buildUpdatedEmail(final ContentValues after, final long rawContactId) {
-        Builder builder = ContentProviderOperation.newUpdate(Data.CONTENT_URI);
+    private Builder buildDeletedEmail(final long rawContactId) {
+        Builder builder = ContentProviderOperation.newDelete(DATA_SYNC_ADAPTER_URI);
         String selection = Email.RAW_CONTACT_ID + "=? AND " +Data.MIMETYPE + "=?";
         String [] selectionArg =
                 new String [] {String.valueOf(rawContactId), Email.CONTENT_ITEM_TYPE};
         builder.withSelection(selection, selectionArg);
-        builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
-        builder.withValue(Email.ADDRESS, after.getAsString(SimContactsConstants.STR_EMAILS));
         return builder;
     }
 
-    private Builder buildDeletedEmail(final ContentValues after,final long rawContactId) {
-        Builder builder = ContentProviderOperation.newDelete(Data.CONTENT_URI);
-        String selection = Email.RAW_CONTACT_ID + "=? AND " +Data.MIMETYPE + "=?";
-        String [] selectionArg =
-                new String [] {String.valueOf(rawContactId), Email.CONTENT_ITEM_TYPE};
-        builder.withSelection(selection, selectionArg);
-        return builder;
-    }
-
-    private Builder buildInsertedEmail(final ContentValues after,final long rawContactId) {
-        Builder builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+    private Builder buildInsertedEmail(final String value, final long rawContactId) {
+        Builder builder = ContentProviderOperation.newInsert(DATA_SYNC_ADAPTER_URI);
         builder.withValue(Email.RAW_CONTACT_ID, rawContactId);
         builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
         builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
-        builder.withValue(Email.ADDRESS, after.getAsString(SimContactsConstants.STR_EMAILS));
+        builder.withValue(Email.ADDRESS, value);
         return builder;
     }
 
-    public ContentProviderOperation.Builder buildDiff(ContentValues before,
-        ContentValues after, String key, long rawContactId) {
-            Builder builder = null;
-            if (isInserted(before, after, key)) {
-                if (SimContactsConstants.STR_TAG.equals(key)) {
-                    builder=buildInsertedName(after,rawContactId);
-                } else if (SimContactsConstants.STR_NUMBER.equals(key)) {
-                    builder=buildInsertedNumber(after,rawContactId);
-                } else if (SimContactsConstants.STR_ANRS.equals(key)) {
-                    builder=buildInsertedAnr(after,rawContactId);
-                } else if (SimContactsConstants.STR_EMAILS.equals(key)) {
-                    builder=buildInsertedEmail(after,rawContactId);
-                }
-            } else if (isDeleted(before, after, key)) {
-               if (SimContactsConstants.STR_TAG.equals(key)) {
-                    builder=buildDeletedName(after,rawContactId);
-                } else if (SimContactsConstants.STR_NUMBER.equals(key)) {
-                    builder=buildDeletedNumber(after,rawContactId);
-                } else if (SimContactsConstants.STR_ANRS.equals(key)) {
-                    builder=buildDeletedAnr(after,rawContactId);
-                } else if (SimContactsConstants.STR_EMAILS.equals(key)) {
-                    builder=buildDeletedEmail(after,rawContactId);
+    private Builder buildChange(int field, int action, String value, long rawContactId) {
+        switch (field) {
+            case SimChangePlanner.FIELD_NAME:
+                if (action == SimChangePlanner.ACTION_INSERT) {
+                    return buildInsertedName(value, rawContactId);
+                } else if (action == SimChangePlanner.ACTION_UPDATE) {
+                    return buildUpdatedName(value, rawContactId);
                 }
-            } else if (isUpdated(before, after, key)) {
-               if (SimContactsConstants.STR_TAG.equals(key)) {
-                    builder=buildUpdatedName(after,rawContactId);
-                } else if (SimContactsConstants.STR_NUMBER.equals(key)) {
-                    builder=buildUpdatedNumber(after,rawContactId);
-                } else if (SimContactsConstants.STR_ANRS.equals(key)) {
-                    builder=buildUpdatedAnr(after,rawContactId);
-                } else if (SimContactsConstants.STR_EMAILS.equals(key)) {
-                    builder=buildUpdatedEmail(after,rawContactId);
+                return buildDeletedName(rawContactId);
+            case SimChangePlanner.FIELD_NUMBER:
+                if (action == SimChangePlanner.ACTION_INSERT) {
+                    return buildInsertedNumber(value, rawContactId);
+                } else if (action == SimChangePlanner.ACTION_UPDATE) {
+                    return buildUpdatedNumber(value, rawContactId);
                 }
-            }
-            return builder;
+                return buildDeletedNumber(rawContactId);
+            case SimChangePlanner.FIELD_ANR:
+                return action == SimChangePlanner.ACTION_DELETE ? buildDeletedAnr(rawContactId)
+                        : buildInsertedAnr(value, rawContactId);
+            default:
+                return action == SimChangePlanner.ACTION_DELETE ? buildDeletedEmail(rawContactId)
+                        : buildInsertedEmail(value, rawContactId);
         }
+    }
 
-    private void deleteOneSimContactFromDatabase(
-        final Cursor cursor, final ContentResolver resolver,int subscription) {
+    /**
+     * Removes stale SIM raw contacts with a few IN-list deletes in one batch.
+     * Only the SIM raw contacts go away, so phone data that was joined with
+     * them stays in the aggregate.
+     *
+     * @return the number of operations applied, or -1 if the batch failed
+     */
+    private int deleteSimContactsFromDatabase(final ContentResolver resolver,
+            final ArrayList<SimContactsDiff.DatabaseRow> rows) {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        final Uri uri = RAW_CONTACTS_SYNC_ADAPTER_URI;
+        final ArrayList<ContentProviderOperation> operationList =
+                new ArrayList<ContentProviderOperation>();
+        final StringBuilder selection = new StringBuilder();
+        int count = 0;
+        for (SimContactsDiff.DatabaseRow row : rows) {
+            if (count == 0) {
+                selection.setLength(0);
+                selection.append(RawContacts._ID).append(" IN (");
+            } else {
+                selection.append(',');
+            }
+            selection.append(row.rawContactId);
+            if (++count == MAX_IDS_PER_DELETE) {
+                operationList.add(buildRawContactsDelete(uri, selection));
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            operationList.add(buildRawContactsDelete(uri, selection));
+        }
+        log("delete " + rows.size() + " stale sim contacts in "
+                + operationList.size() + " operations");
+        return applyBatch(resolver, operationList);
+    }
 
-        String id;
-        id = String.valueOf(mDatabaseCursor[subscription].getLong(CONTACT_ID_COLUMN_COLUMN));
-        Uri uri = Uri.withAppendedPath(Contacts.CONTENT_URI, id);
-        log("delete uri is " + uri);
-        resolver.delete(uri, null, null);
+    private static ContentProviderOperation buildRawContactsDelete(Uri uri,
+            StringBuilder selection) {
+        selection.append(')');
+        return ContentProviderOperation.newDelete(uri)
+                .withSelection(selection.toString(), null)
+                .withYieldAllowed(true)
+                .build();
     }
 
 
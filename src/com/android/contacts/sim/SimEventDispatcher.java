@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.contacts.sim;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+
+/**
+ * Collects the SIM broadcasts of each subscription for a short window and
+ * forwards them to {@link SimContactsService} as one command, so a burst
+ * like LOADED, REFRESH, LOADED starts a single sync pass.
+ *
+ * All methods must be called on the main thread, which is where broadcast
+ * receivers run.
+ */
+public class SimEventDispatcher {
+    private static final String TAG = "SimEventDispatcher";
+    private static final boolean DBG = Log.isLoggable(TAG, Log.DEBUG);
+
+    // Quiet period after the last event before the command is sent.
+    private static final long DEBOUNCE_DELAY_MS = 500;
+    // Upper bound on how long a stream of events can postpone the command.
+    private static final long MAX_DELAY_MS = 2000;
+
+    private static final int STATE_UNKNOWN = 0;
+
+    private static SimEventDispatcher sInstance;
+
+    private static class PendingEvent {
+        int simState = STATE_UNKNOWN;
+        boolean refresh;
+        long firstEventTime;
+        final ArrayList<BroadcastReceiver.PendingResult> results =
+                new ArrayList<BroadcastReceiver.PendingResult>();
+    }
+
+    private final Context mContext;
+    private final SparseArray<PendingEvent> mPending = new SparseArray<PendingEvent>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            dispatch(msg.what);
+        }
+    };
+
+    private SimEventDispatcher(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    public static synchronized SimEventDispatcher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SimEventDispatcher(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Records a new card state. A later state replaces an earlier one.
+     *
+     * @param result kept open until the command has been sent, may be null
+     */
+    public void onSimStateChanged(int subscription, int simState,
+            BroadcastReceiver.PendingResult result) {
+        final PendingEvent event = getPendingEvent(subscription);
+        event.simState = simState;
+        schedule(subscription, event, result);
+    }
+
+    /**
+     * Records a phonebook refresh.
+     *
+     * @param result kept open until the command has been sent, may be null
+     */
+    public void onSimRefresh(int subscription, BroadcastReceiver.PendingResult result) {
+        final PendingEvent event = getPendingEvent(subscription);
+        event.refresh = true;
+        schedule(subscription, event, result);
+    }
+
+    private PendingEvent getPendingEvent(int subscription) {
+        PendingEvent event = mPending.get(subscription);
+        if (event == null) {
+            event = new PendingEvent();
+            event.firstEventTime = SystemClock.uptimeMillis();
+            mPending.put(subscription, event);
+        }
+        return event;
+    }
+
+    private void schedule(int subscription, PendingEvent event,
+            BroadcastReceiver.PendingResult result) {
+        if (result != null) {
+            event.results.add(result);
+        }
+        mHandler.removeMessages(subscription);
+        final long now = SystemClock.uptimeMillis();
+        final long deadline = event.firstEventTime + MAX_DELAY_MS;
+        final long when = Math.min(now + DEBOUNCE_DELAY_MS, deadline);
+        mHandler.sendEmptyMessageAtTime(subscription, Math.max(now, when));
+    }
+
+    private void dispatch(int subscription) {
+        final PendingEvent event = mPending.get(subscription);
+        if (event == null) {
+            return;
+        }
+        mPending.remove(subscription);
+
+        final Bundle args = new Bundle();
+        args.putInt(SimContactsConstants.SUB, subscription);
+        if (event.simState != STATE_UNKNOWN) {
+            args.putInt(SimContactsService.OPERATION, SimContactsService.OP_SIM);
+            args.putInt(SimContactsService.SIM_STATE, event.simState);
+            args.putBoolean(SimContactsService.REFRESH, event.refresh);
+        } else {
+            args.putInt(SimContactsService.OPERATION, SimContactsService.OP_SIM_REFRESH);
+        }
+        log("dispatch sub " + subscription + ": state " + event.simState
+                + ", refresh " + event.refresh + ", merged " + event.results.size() + " events");
+        mContext.startService(new Intent(mContext, SimContactsService.class).putExtras(args));
+
+        for (BroadcastReceiver.PendingResult result : event.results) {
+            result.finish();
+        }
+    }
+
+    private static void log(String msg) {
+        if (DBG) Log.d(TAG, msg);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.contacts.sim;
+
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a SIM phonebook into the contacts provider in two overlapping
+ * stages connected by a bounded queue:
+ * <ol>
+ * <li>the reader walks the ADN cursor on the calling thread and turns each
+ * row into a normalized {@link SimRecord},</li>
+ * <li>the writer packs the records into provider batches and streams them
+ * into the card snapshot, on a thread of the given stage executor.</li>
+ * </ol>
+ * ICC cursor windows and string handling therefore run while the provider
+ * writes the previous batch, and at most {@link #QUEUE_CAPACITY} records are
+ * held in memory however large the phonebook is.
+ */
+public class SimImportPipeline {
+    private static final String TAG = "SimImportPipeline";
+    private static final boolean DBG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final int QUEUE_CAPACITY = 64;
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    // Marks the end of a queue.
+    private static final Object END = new Object();
+
+    private final SimContactsImporter mImporter;
+    private final SimSnapshotStore.Writer mSnapshot;
+    private final Executor mExecutor;
+    private final CancellationSignal mSignal;
+
+    private final BlockingQueue<Object> mRecords =
+            new ArrayBlockingQueue<Object>(QUEUE_CAPACITY);
+
+    private volatile RuntimeException mFailure;
+    private int mRecordCount = 0;
+    private int mImportedCount = 0;
+
+    /**
+     * @param executor runs the writer stage; see
+     *        {@link SimSyncScheduler#getStageExecutor}
+     */
+    public SimImportPipeline(SimContactsImporter importer, SimSnapshotStore.Writer snapshot,
+            Executor executor, CancellationSignal signal) {
+        mImporter = importer;
+        mSnapshot = snapshot;
+        mExecutor = executor;
+        mSignal = signal;
+    }
+
+    /**
+     * Imports every row of the cursor, blocking until the last batch has
+     * been written. The snapshot is committed only if every record was
+     * imported.
+     *
+     * @return true if every record reached the provider
+     */
+    public boolean run(Cursor cursor) {
+        final FutureTask<Void> writer = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, null);
+        try {
+            mExecutor.execute(writer);
+        } catch (RejectedExecutionException e) {
+            // The scheduler is shutting down.
+            mSnapshot.abort();
+            throw new OperationCanceledException();
+        }
+
+        try {
+            read(cursor);
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+        await(writer);
+
+        if (mFailure != null) {
+            mSnapshot.abort();
+            throw mFailure;
+        }
+        final boolean complete = mImportedCount == mRecordCount;
+        if (complete) {
+            mSnapshot.commit();
+        } else {
+            mSnapshot.abort();
+        }
+        log("pipeline imported " + mImportedCount + " of " + mRecordCount + " records");
+        return complete;
+    }
+
+    private void read(Cursor cursor) {
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            if (mSignal != null) {
+                mSignal.throwIfCanceled();
+            }
+            final SimRecord record = new SimRecord(
+                    SimRecord.parseIndex(cursor.getString(SimContactsService.INDEX_COLUMN)),
+                    cursor.getString(SimContactsService.NAME_COLUMN),
+                    cursor.getString(SimContactsService.NUMBER_COLUMN),
+                    SimRecord.normalizeList(cursor.getString(SimContactsService.EMAILS_COLUMN)),
+                    SimRecord.normalizeList(cursor.getString(SimContactsService.ANRS_COLUMN)));
+            if (!put(mRecords, record)) {
+                return;
+            }
+        }
+        put(mRecords, END);
+    }
+
+    private void write() {
+        try {
+            Object item;
+            while ((item = take(mRecords)) != END && item != null) {
+                final SimRecord record = (SimRecord) item;
+                mRecordCount++;
+                mImporter.add(record);
+                mSnapshot.append(record);
+            }
+            if (item == END) {
+                mImportedCount = mImporter.finish();
+            }
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(RuntimeException e) {
+        if (mFailure == null) {
+            mFailure = e;
+        }
+        if (!(e instanceof OperationCanceledException)) {
+            Log.e(TAG, "import pipeline failed", e);
+        }
+    }
+
+    /** Waits for space in the queue unless another stage has failed. */
+    private boolean put(BlockingQueue<Object> queue, Object item) {
+        try {
+            while (mFailure == null) {
+                if (queue.offer(item, POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            fail(new OperationCanceledException());
+        }
+        return false;
+    }
+
+    /** Waits for an item unless another stage has failed, then returns null. */
+    private Object take(BlockingQueue<Object> queue) {
+        try {
+            while (mFailure == null) {
+                final Object item = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (item != null) {
+                    return item;
+                }
+            }
+        } catch (InterruptedException e) {
+            fail(new OperationCanceledException());
+        }
+        return null;
+    }
+
+    /** Waits for the writer stage; its failures are already recorded. */
+    private static void await(FutureTask<Void> stage) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                stage.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void log(String msg) {
+        if (DBG) Log.d(TAG, msg);
+    }
+}
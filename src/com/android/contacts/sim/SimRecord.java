@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.contacts.sim;
+
+/**
+ * One ADN record, either as read from the SIM or as rebuilt from the
+ * contacts stored in the SIM account.
+ *
+ * Records are immutable, so the same instance is handed from the SIM reader
+ * to the importer, the snapshot and the diff. Two records are equal when
+ * they have the same content; the SIM index is not part of it, and empty
+ * entries of the ANR and email lists are ignored. Numbers and ANRs are
+ * compared in their {@link PhoneNumberNormalizer#canonicalize canonical}
+ * form, so a number that only differs in separators does not count as a
+ * change, and the fingerprint and checksum agree with {@link #equals}. The
+ * hash is computed once, so records can be used as hash keys without
+ * building a string key.
+ *
+ * {@link #sameContent} is the looser comparison of the diff: it also
+ * matches numbers where one only adds a prefix to the other. It is not
+ * transitive, so it is never used for hashing.
+ */
+public class SimRecord {
+    /** Index of the record on the SIM, or -1 when it is not known. */
+    public final int index;
+    public final String name;
+    public final String number;
+    public final String emails;
+    public final String anrs;
+
+    // Canonical forms of the number and of the ANR list.
+    private final String mNumberKey;
+    private final String mAnrsKey;
+    private final int mHash;
+    private String mFingerprint;
+    private String mChecksum;
+
+    public SimRecord(int index, String name, String number, String emails, String anrs) {
+        this.index = index;
+        this.name = name;
+        this.number = number;
+        this.emails = emails;
+        this.anrs = anrs;
+
+        mNumberKey = nonNull(PhoneNumberNormalizer.canonicalize(number));
+        mAnrsKey = canonicalizeList(anrs);
+        int hash = nonNull(name).hashCode();
+        hash = 31 * hash + mNumberKey.hashCode();
+        hash = SimValueTokenizer.hashList(31 * hash, emails);
+        mHash = 31 * hash + mAnrsKey.hashCode();
+    }
+
+    /**
+     * Returns a key that is equal for two records with the same content,
+     * regardless of where they are stored on the SIM; it is equal exactly
+     * when the records are.
+     */
+    public String getFingerprint() {
+        if (mFingerprint == null) {
+            StringBuilder buf = new StringBuilder();
+            buf.append(nonNull(name)).append('\n');
+            buf.append(mNumberKey).append('\n');
+            appendList(buf, emails);
+            buf.append('\n');
+            buf.append(mAnrsKey);
+            mFingerprint = buf.toString();
+        }
+        return mFingerprint;
+    }
+
+    /**
+     * Returns a 64-bit hash of the fingerprint in hex. It is stored on the
+     * raw contact imported from this record, so a later sync can tell from
+     * the raw contact alone whether the SIM slot still holds the same data.
+     */
+    public String getChecksum() {
+        if (mChecksum == null) {
+            final String fingerprint = getFingerprint();
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < fingerprint.length(); i++) {
+                hash ^= fingerprint.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            mChecksum = Long.toHexString(hash);
+        }
+        return mChecksum;
+    }
+
+    /**
+     * Returns true if the other record is equal to this one, or only differs
+     * in numbers that {@link PhoneNumberNormalizer#sameNumber} matches.
+     */
+    public boolean sameContent(SimRecord other) {
+        if (other == null) {
+            return false;
+        }
+        if (other.mHash == mHash && equals(other)) {
+            return true;
+        }
+        return nonNull(name).equals(nonNull(other.name))
+                && PhoneNumberNormalizer.sameNumber(number, other.number)
+                && SimValueTokenizer.sameList(emails, other.emails)
+                && PhoneNumberNormalizer.sameNumberList(anrs, other.anrs);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof SimRecord)) {
+            return false;
+        }
+        final SimRecord record = (SimRecord) other;
+        return record.mHash == mHash
+                && nonNull(name).equals(nonNull(record.name))
+                && mNumberKey.equals(record.mNumberKey)
+                && SimValueTokenizer.sameList(emails, record.emails)
+                && mAnrsKey.equals(record.mAnrsKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    /**
+     * Compares two comma separated lists, ignoring empty entries.
+     */
+    public static boolean sameList(String first, String second) {
+        return SimValueTokenizer.sameList(first, second);
+    }
+
+    /**
+     * Drops the empty entries of a comma separated list.
+     *
+     * @return the cleaned list, or null if it has no entries
+     */
+    public static String normalizeList(String list) {
+        if (list == null || list.length() == 0) {
+            return null;
+        }
+        if (SimValueTokenizer.isNormalized(list)) {
+            return list;
+        }
+        StringBuilder buf = new StringBuilder(list.length());
+        appendList(buf, list);
+        return buf.length() == 0 ? null : buf.toString();
+    }
+
+    /** Joins the canonical forms of the non-empty entries of a number list. */
+    private static String canonicalizeList(String list) {
+        if (list == null || list.length() == 0) {
+            return "";
+        }
+        final StringBuilder buf = new StringBuilder(list.length());
+        final SimValueTokenizer tokenizer = new SimValueTokenizer().reset(list);
+        while (tokenizer.next()) {
+            if (buf.length() > 0) {
+                buf.append(',');
+            }
+            buf.append(PhoneNumberNormalizer.canonicalize(tokenizer.value()));
+        }
+        return buf.toString();
+    }
+
+    private static void appendList(StringBuilder buf, String list) {
+        if (list == null) {
+            return;
+        }
+        final int length = list.length();
+        boolean first = true;
+        int start = 0;
+        while (start < length) {
+            int end = list.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                if (!first) {
+                    buf.append(',');
+                }
+                buf.append(list, start, end);
+                first = false;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Parses a SIM index as stored in the ADN {@code _id} column or in
+     * {@code RawContacts.SOURCE_ID}.
+     *
+     * @return the index, or -1 if it is missing or malformed
+     */
+    public static int parseIndex(String value) {
+        try {
+            return value == null ? -1 : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static String nonNull(String value) {
+        return value == null ? "" : value;
+    }
+
+    @Override
+    public String toString() {
+        return "SimRecord[" + index + "] name=" + name + ", number=" + number
+                + ", emails=" + emails + ", anrs=" + anrs;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.contacts.sim;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a copy of the ADN records last synced for each subscription, so an
+ * unchanged card can be recognized by its digest without reconciling the
+ * contacts database again.
+ */
+public class SimSnapshotStore {
+    private static final String TAG = "SimSnapshotStore";
+    private static final String FILE_PREFIX = "sim_snapshot_";
+    private static final int VERSION = 2;
+
+    /** The records of one card as they were last synced. */
+    public static class Snapshot {
+        public final String cardId;
+        public final String digest;
+        public final ArrayList<SimRecord> records;
+
+        Snapshot(String cardId, String digest, ArrayList<SimRecord> records) {
+            this.cardId = cardId;
+            this.digest = digest;
+            this.records = records;
+        }
+    }
+
+    private final File mDir;
+
+    public SimSnapshotStore(Context context) {
+        mDir = context.getFilesDir();
+    }
+
+    /**
+     * Writes a snapshot record by record, so a card can be streamed to disk
+     * without holding all of its records. Nothing replaces the previous
+     * snapshot until {@link #commit} is called.
+     */
+    public class Writer {
+        private final int mSubscription;
+        private final AtomicFile mFile;
+        private final DigestBuilder mDigest = new DigestBuilder();
+        private FileOutputStream mStream;
+        private DataOutputStream mOut;
+
+        Writer(int subscription, String cardId) {
+            mSubscription = subscription;
+            mFile = getFile(subscription);
+            try {
+                mStream = mFile.startWrite();
+                mOut = new DataOutputStream(new BufferedOutputStream(mStream));
+                mOut.writeInt(VERSION);
+                mOut.writeUTF(cardId == null ? "" : cardId);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        public void append(SimRecord record) {
+            mDigest.add(record);
+            if (mOut == null) {
+                return;
+            }
+            try {
+                mOut.writeBoolean(true);
+                mOut.writeInt(record.index);
+                writeString(mOut, record.name);
+                writeString(mOut, record.number);
+                writeString(mOut, record.emails);
+                writeString(mOut, record.anrs);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Replaces the stored snapshot with the appended records.
+         *
+         * @return the digest of the appended records
+         */
+        public String commit() {
+            final String digest = mDigest.build();
+            if (mOut == null) {
+                return digest;
+            }
+            try {
+                mOut.writeBoolean(false);
+                mOut.writeUTF(digest);
+                mOut.flush();
+                mFile.finishWrite(mStream);
+            } catch (IOException e) {
+                fail(e);
+            }
+            mOut = null;
+            return digest;
+        }
+
+        /** Keeps the previous snapshot. */
+        public void abort() {
+            if (mOut != null) {
+                mFile.failWrite(mStream);
+                mOut = null;
+            }
+        }
+
+        private void fail(IOException e) {
+            Log.e(TAG, "failed to write snapshot of sub " + mSubscription, e);
+            if (mStream != null) {
+                mFile.failWrite(mStream);
+            }
+            mOut = null;
+        }
+    }
+
+    /** Incremental form of {@link SimSnapshotStore#computeDigest}. */
+    public static class DigestBuilder {
+        private final MessageDigest mDigest;
+
+        public DigestBuilder() {
+            try {
+                mDigest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public void add(SimRecord record) {
+            try {
+                mDigest.update(String.valueOf(record.index).getBytes("UTF-8"));
+                mDigest.update((byte) 0);
+                mDigest.update(record.getFingerprint().getBytes("UTF-8"));
+                mDigest.update((byte) 0);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public String build() {
+            final byte[] hash = mDigest.digest();
+            final StringBuilder buf = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                buf.append(Character.forDigit((b >> 4) & 0xf, 16));
+                buf.append(Character.forDigit(b & 0xf, 16));
+            }
+            return buf.toString();
+        }
+    }
+
+    /**
+     * Returns the snapshot of the given subscription, or null if there is
+     * none or it cannot be read.
+     */
+    public Snapshot read(int subscription) {
+        final AtomicFile file = getFile(subscription);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(file.openRead()));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            final String cardId = in.readUTF();
+            final ArrayList<SimRecord> records = new ArrayList<SimRecord>();
+            while (in.readBoolean()) {
+                final int index = in.readInt();
+                records.add(new SimRecord(index, readString(in), readString(in),
+                        readString(in), readString(in)));
+            }
+            final String digest = in.readUTF();
+            return new Snapshot(cardId, digest, records);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "failed to read snapshot of sub " + subscription, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts replacing the snapshot of the given subscription.
+     */
+    public Writer openWriter(int subscription, String cardId) {
+        return new Writer(subscription, cardId);
+    }
+
+    /**
+     * Replaces the snapshot of the given subscription.
+     */
+    public void write(int subscription, String cardId, List<SimRecord> records) {
+        final Writer writer = openWriter(subscription, cardId);
+        for (SimRecord record : records) {
+            writer.append(record);
+        }
+        writer.commit();
+    }
+
+    public void delete(int subscription) {
+        getFile(subscription).delete();
+    }
+
+    /**
+     * Computes a digest over the content and position of every record.
+     */
+    public static String computeDigest(List<SimRecord> records) {
+        final DigestBuilder digest = new DigestBuilder();
+        for (SimRecord record : records) {
+            digest.add(record);
+        }
+        return digest.build();
+    }
+
+    private AtomicFile getFile(int subscription) {
+        return new AtomicFile(new File(mDir, FILE_PREFIX + subscription));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
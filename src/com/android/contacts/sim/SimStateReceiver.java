@@ -28,20 +28,15 @@
  */
 package com.android.contacts.sim;
 
-import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.os.Bundle;
-import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import com.android.internal.telephony.IccCardConstants;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.TelephonyIntents;
 
-import java.util.List;
-
 
 public class SimStateReceiver extends BroadcastReceiver {
     private static boolean DBG = true;
@@ -58,84 +53,38 @@ public class SimStateReceiver extends BroadcastReceiver {
         final String action = intent.getAction();
         mContext = context;
         if (DBG) log("received broadcast " + action);
-        if (isServiceWork("com.android.contacts.sim.SimContactsService")) {
-            stopService();
-        }
+        final SimEventDispatcher dispatcher = SimEventDispatcher.getInstance(context);
         if (TelephonyIntents.ACTION_SIM_STATE_CHANGED.equals(action)) {
-            final int subscription = intent.getIntExtra(PhoneConstants.SUBSCRIPTION_KEY, SUB1);
+            final int subscription = isMultiSimEnabled()
+                    ? intent.getIntExtra(PhoneConstants.SUBSCRIPTION_KEY, SUB1) : SUB1;
             final String stateExtra = intent.getStringExtra(IccCardConstants.INTENT_KEY_ICC_STATE);
-            final int simState;
             if (DBG) log("ACTION_SIM_STATE_CHANGED intent received on sub = " + subscription
                 + "SIM STATE IS " + stateExtra);
 
+            final int simState;
             if (IccCardConstants.INTENT_VALUE_ICC_LOADED.equals(stateExtra)) {
-                if (isMultiSimEnabled()) {
-                    sendSimState(subscription, SimContactsConstants.SIM_STATE_READY);
-                } else {
-                    sendSimState(SimContactsConstants.SIM_STATE_READY);
-                }
+                simState = SimContactsConstants.SIM_STATE_READY;
+            } else if (IccCardConstants.INTENT_VALUE_ICC_READY.equals(stateExtra)
+                    || IccCardConstants.INTENT_VALUE_ICC_IMSI.equals(stateExtra)) {
+                // Intermediate states on the way to LOADED, nothing to do yet.
+                return;
+            } else {
+                simState = SimContactsConstants.SIM_STATE_NOT_READY;
             }
+            dispatcher.onSimStateChanged(subscription, simState, goAsync());
         } else if ("android.intent.action.ACTION_SIM_REFRESH_UPDATE".equals(action)) {
             final int subscription = intent.getIntExtra(PhoneConstants.SUBSCRIPTION_KEY, SUB1);
             if (DBG) log("ACTION_SIM_REFRESH_UPDATE intent received on sub = " + subscription);
-            sendSimRefreshUpdate(subscription);
+            dispatcher.onSimRefresh(subscription, goAsync());
         }
     }
 
-    private void stopService() {
-        Intent intent = new Intent(mContext, SimContactsService.class);
-        mContext.stopService(intent);
-    }
-
-    private void sendSimState(int subscription, int state) {
-            Bundle args = new Bundle();
-            args.putInt(SimContactsConstants.SUB, subscription);
-            args.putInt(SimContactsService.OPERATION, SimContactsService.OP_SIM);
-            args.putInt(SimContactsService.SIM_STATE, state);
-            mContext.startService(new Intent(mContext, SimContactsService.class)
-                    .putExtras(args));
-    }
-
-    private void sendSimState(int state) {
-            Bundle args = new Bundle();
-            args.putInt(SimContactsService.OPERATION, SimContactsService.OP_SIM);
-            args.putInt(SimContactsService.SIM_STATE, state);
-            mContext.startService(new Intent(mContext, SimContactsService.class)
-                    .putExtras(args));
-    }
-
-    private void sendSimRefreshUpdate(int subscription) {
-        Bundle args = new Bundle();
-        args.putInt(SimContactsService.OPERATION, SimContactsService.OP_SIM_REFRESH);
-        args.putInt(SimContactsConstants.SUB, subscription);
-        mContext.startService(new Intent(mContext, SimContactsService.class)
-                .putExtras(args));
-    }
-
     private boolean  isMultiSimEnabled() {
-        return TelephonyManager.getDefault().isMultiSimEnabled();
+        return TelephonyTopology.getInstance(mContext).isMultiSimEnabled();
     }
 
     protected void log(String msg) {
         Log.d(TAG, msg);
     }
 
-    public boolean isServiceWork(String serviceName) {
-        boolean isWork = false;
-        ActivityManager mAppManager = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
-        List<ActivityManager.RunningServiceInfo> mAppRuningList = mAppManager.getRunningServices(100);
-        if (mAppRuningList.size() <= 0) {
-            return false;
-        }
-        for (int i = 0; i < mAppRuningList.size(); i++) {
-             String mRuningPackageName = mAppRuningList.get(i).service.getClassName().toString();
-             if (mRuningPackageName.equals(serviceName)) {
-                 isWork = true;
-                 break;
-             }
-        }
-        return isWork;
-     }
-
 }
-
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.contacts.sim;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Process-wide counters and phase timings of the SIM sync, per
+ * subscription. Timings keep the last {@link #WINDOW_SIZE} samples of each
+ * phase, so percentiles follow recent behavior rather than the whole
+ * uptime.
+ */
+public class SimSyncMetrics {
+    public static final int PHASE_ICC_QUERY = 0;
+    public static final int PHASE_DB_QUERY = 1;
+    public static final int PHASE_DIFF = 2;
+    public static final int PHASE_APPLY = 3;
+    public static final int PHASE_DELETE = 4;
+    private static final int PHASE_COUNT = 5;
+
+    public static final int COUNT_PASSES = 0;
+    public static final int COUNT_INSERTED = 1;
+    public static final int COUNT_UPDATED = 2;
+    public static final int COUNT_DELETED = 3;
+    public static final int COUNT_UNCHANGED = 4;
+    public static final int COUNT_PROVIDER_OPS = 5;
+    public static final int COUNT_FAILURES = 6;
+    public static final int COUNT_CANCELED = 7;
+    private static final int COUNTER_COUNT = 8;
+
+    private static final String[] PHASE_NAMES = {
+        "icc_query", "db_query", "diff", "apply", "delete"
+    };
+    private static final String[] COUNTER_NAMES = {
+        "passes", "inserted", "updated", "deleted", "unchanged", "provider_ops", "failures",
+        "canceled"
+    };
+
+    static final int WINDOW_SIZE = 64;
+    static final int MAX_SUBSCRIPTIONS = 2;
+
+    private static final SimSyncMetrics sInstance = new SimSyncMetrics();
+
+    /** Rolling window of durations, in milliseconds. */
+    private static class Histogram {
+        final long[] samples = new long[WINDOW_SIZE];
+        int size;
+        int next;
+        long last;
+        long total;
+        long count;
+
+        void add(long value) {
+            samples[next] = value;
+            next = (next + 1) % WINDOW_SIZE;
+            if (size < WINDOW_SIZE) {
+                size++;
+            }
+            last = value;
+            total += value;
+            count++;
+        }
+
+        long percentile(int percent) {
+            if (size == 0) {
+                return 0;
+            }
+            final long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            final int rank = (int) Math.ceil(percent / 100.0 * size) - 1;
+            return sorted[Math.max(0, Math.min(size - 1, rank))];
+        }
+    }
+
+    private final Histogram[][] mPhases = new Histogram[MAX_SUBSCRIPTIONS][PHASE_COUNT];
+    private final long[][] mCounters = new long[MAX_SUBSCRIPTIONS][COUNTER_COUNT];
+
+    private SimSyncMetrics() {
+        for (int sub = 0; sub < MAX_SUBSCRIPTIONS; sub++) {
+            for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                mPhases[sub][phase] = new Histogram();
+            }
+        }
+    }
+
+    public static SimSyncMetrics getInstance() {
+        return sInstance;
+    }
+
+    public synchronized void recordPhase(int subscription, int phase, long durationMs) {
+        if (isValid(subscription)) {
+            mPhases[subscription][phase].add(durationMs);
+        }
+    }
+
+    public synchronized void increment(int subscription, int counter, long delta) {
+        if (isValid(subscription)) {
+            mCounters[subscription][counter] += delta;
+        }
+    }
+
+    public synchronized long getCounter(int subscription, int counter) {
+        return isValid(subscription) ? mCounters[subscription][counter] : 0;
+    }
+
+    /** Duration of the most recent run of a phase, in milliseconds. */
+    public synchronized long getLastDuration(int subscription, int phase) {
+        return isValid(subscription) ? mPhases[subscription][phase].last : 0;
+    }
+
+    /** Percentile of the recent durations of a phase, in milliseconds. */
+    public synchronized long getPercentile(int subscription, int phase, int percent) {
+        return isValid(subscription) ? mPhases[subscription][phase].percentile(percent) : 0;
+    }
+
+    public synchronized void dump(PrintWriter pw, int subscriptionCount) {
+        for (int sub = 0; sub < Math.min(subscriptionCount, MAX_SUBSCRIPTIONS); sub++) {
+            pw.println("  sub " + sub + ":");
+            final StringBuilder buf = new StringBuilder("    counters:");
+            for (int counter = 0; counter < COUNTER_COUNT; counter++) {
+                buf.append(' ').append(COUNTER_NAMES[counter]).append('=')
+                        .append(mCounters[sub][counter]);
+            }
+            pw.println(buf.toString());
+            for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                final Histogram h = mPhases[sub][phase];
+                if (h.count == 0) {
+                    continue;
+                }
+                pw.println("    " + PHASE_NAMES[phase] + ": n=" + h.count
+                        + " last=" + h.last + "ms"
+                        + " avg=" + (h.total / h.count) + "ms"
+                        + " p50=" + h.percentile(50) + "ms"
+                        + " p90=" + h.percentile(90) + "ms"
+                        + " max=" + h.percentile(100) + "ms (last " + h.size + ")");
+            }
+        }
+    }
+
+    private static boolean isValid(int subscription) {
+        return subscription >= 0 && subscription < MAX_SUBSCRIPTIONS;
+    }
+}
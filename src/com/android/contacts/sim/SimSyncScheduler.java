@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.contacts.sim;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs SIM sync jobs on a small shared pool, one serial lane per
+ * subscription.
+ *
+ * A lane holds at most one queued job. Scheduling a new job replaces the
+ * queued one and cancels the running one, which is expected to check its
+ * {@link CancellationSignal} between batches and stop early.
+ *
+ * A running job can hand one helper stage at a time to
+ * {@link #getStageExecutor}, a second pool of the same size, so the stages
+ * of an import reuse pooled background threads as well.
+ */
+public class SimSyncScheduler {
+    private static final String TAG = "SimSyncScheduler";
+    private static final boolean DBG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    /** A unit of sync work for one subscription. */
+    public interface Job {
+        void run(CancellationSignal signal);
+
+        /** Called instead of {@link #run} when the job is superseded before it starts. */
+        void discard();
+    }
+
+    private class Lane implements Runnable {
+        private final int mSubscription;
+        private Job mPending;
+        private CancellationSignal mRunningSignal;
+        private boolean mActive;
+
+        Lane(int subscription) {
+            mSubscription = subscription;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Job job;
+                final CancellationSignal signal;
+                synchronized (this) {
+                    job = mPending;
+                    mPending = null;
+                    if (job == null) {
+                        mActive = false;
+                        return;
+                    }
+                    signal = new CancellationSignal();
+                    mRunningSignal = signal;
+                }
+                try {
+                    job.run(signal);
+                } catch (OperationCanceledException e) {
+                    log("job canceled at sub " + mSubscription);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "job failed at sub " + mSubscription, e);
+                } finally {
+                    synchronized (this) {
+                        mRunningSignal = null;
+                    }
+                }
+            }
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ThreadPoolExecutor mStageExecutor;
+    private final Lane[] mLanes;
+
+    public SimSyncScheduler(int subscriptionCount) {
+        final int lanes = Math.max(1, subscriptionCount);
+        mLanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++) {
+            mLanes[i] = new Lane(i);
+        }
+        // Every lane submits at most one runnable at a time, so the queue
+        // never holds more than one entry per subscription.
+        mExecutor = newBackgroundPool(lanes, "SimSync #");
+        mStageExecutor = newBackgroundPool(lanes, "SimSyncStage #");
+    }
+
+    private static ThreadPoolExecutor newBackgroundPool(int threads, final String name) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, name + mCount.getAndIncrement());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Returns the pool for the helper stages of running jobs. Each job may
+     * keep at most one stage on it, so no stage waits for another job.
+     */
+    public Executor getStageExecutor() {
+        return mStageExecutor;
+    }
+
+    /**
+     * Queues a job on the lane of the given subscription, superseding any
+     * job that is still waiting or running there.
+     */
+    public void schedule(int subscription, Job job) {
+        if (mExecutor.isShutdown()) {
+            log("scheduler is shut down, ignore job at sub " + subscription);
+            return;
+        }
+        final Lane lane = mLanes[subscription];
+        synchronized (lane) {
+            if (lane.mPending != null) {
+                log("drop stale job at sub " + subscription);
+                lane.mPending.discard();
+            }
+            lane.mPending = job;
+            if (lane.mRunningSignal != null) {
+                lane.mRunningSignal.cancel();
+            }
+            if (!lane.mActive) {
+                lane.mActive = true;
+                mExecutor.execute(lane);
+            }
+        }
+    }
+
+    /**
+     * Drops the queued job of the given subscription and cancels the
+     * running one.
+     */
+    public void cancel(int subscription) {
+        final Lane lane = mLanes[subscription];
+        synchronized (lane) {
+            if (lane.mPending != null) {
+                lane.mPending.discard();
+                lane.mPending = null;
+            }
+            if (lane.mRunningSignal != null) {
+                lane.mRunningSignal.cancel();
+            }
+        }
+    }
+
+    public void shutdown() {
+        for (int i = 0; i < mLanes.length; i++) {
+            cancel(i);
+        }
+        mExecutor.shutdown();
+        mStageExecutor.shutdown();
+    }
+
+    private static void log(String msg) {
+        if (DBG) Log.d(TAG, msg);
+    }
+}
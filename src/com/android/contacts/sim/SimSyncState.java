@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.contacts.sim;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sync state of one subscription, shared by the service handler, the query
+ * callbacks and the sync workers.
+ *
+ * A pass moves IDLE -> QUERYING_SIM -> QUERYING_DB -> APPLYING -> IDLE, where
+ * QUERYING_DB is skipped for a new card. Requests that arrive while a pass
+ * is running only raise a flag, so any number of them lead to exactly one
+ * follow-up pass.
+ */
+public class SimSyncState {
+    public static final int IDLE = 0;
+    public static final int QUERYING_SIM = 1;
+    public static final int QUERYING_DB = 2;
+    public static final int APPLYING = 3;
+
+    private final AtomicInteger mState = new AtomicInteger(IDLE);
+    private final AtomicBoolean mPending = new AtomicBoolean(false);
+
+    /**
+     * Asks for a sync pass.
+     *
+     * @return true if the caller owns a new pass and must start it, false if
+     *         the request was folded into the running pass' follow-up
+     */
+    public boolean requestSync() {
+        mPending.set(true);
+        return tryStart();
+    }
+
+    /**
+     * Records a request that can only run later, e.g. while the card is not
+     * ready yet.
+     */
+    public void markPending() {
+        mPending.set(true);
+    }
+
+    /**
+     * Moves a running pass to its next phase.
+     *
+     * @return false if the pass is not in the expected phase
+     */
+    public boolean advance(int from, int to) {
+        return mState.compareAndSet(from, to);
+    }
+
+    /**
+     * Ends the running pass.
+     *
+     * @return true if requests arrived meanwhile and the caller now owns the
+     *         follow-up pass
+     */
+    public boolean finish() {
+        mState.set(IDLE);
+        return mPending.get() && tryStart();
+    }
+
+    /**
+     * Ends a pass that could not run, keeping its request for later.
+     */
+    public void abort() {
+        mPending.set(true);
+        mState.set(IDLE);
+    }
+
+    public int get() {
+        return mState.get();
+    }
+
+    public boolean isIdle() {
+        return mState.get() == IDLE;
+    }
+
+    private boolean tryStart() {
+        if (!mState.compareAndSet(IDLE, QUERYING_SIM)) {
+            return false;
+        }
+        // The new pass has not read the card yet, so it covers every
+        // request made up to this point.
+        mPending.set(false);
+        return true;
+    }
+
+    public static String toString(int state) {
+        switch (state) {
+            case IDLE:
+                return "IDLE";
+            case QUERYING_SIM:
+                return "QUERYING_SIM";
+            case QUERYING_DB:
+                return "QUERYING_DB";
+            case APPLYING:
+                return "APPLYING";
+            default:
+                return "UNKNOWN(" + state + ")";
+        }
+    }
+}
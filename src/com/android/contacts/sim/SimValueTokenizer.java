@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.sim;
+
+/**
+ * Walks the comma separated ANR and email fields of a SIM record without
+ * building intermediate arrays. Empty entries are skipped.
+ *
+ * A tokenizer is meant to be reset and reused for every record of an import;
+ * the only allocation is the substring returned by {@link #value()}.
+ */
+public final class SimValueTokenizer {
+    private String mList;
+    private int mLength;
+    private int mPosition;
+    private int mStart;
+    private int mEnd;
+
+    public SimValueTokenizer reset(String list) {
+        mList = list;
+        mLength = list == null ? 0 : list.length();
+        mPosition = 0;
+        mStart = 0;
+        mEnd = 0;
+        return this;
+    }
+
+    /**
+     * Advances to the next non-empty entry.
+     *
+     * @return false once the list is exhausted
+     */
+    public boolean next() {
+        while (mPosition < mLength) {
+            int end = mList.indexOf(',', mPosition);
+            if (end < 0) {
+                end = mLength;
+            }
+            final int start = mPosition;
+            mPosition = end + 1;
+            if (end > start) {
+                mStart = start;
+                mEnd = end;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int length() {
+        return mEnd - mStart;
+    }
+
+    public String value() {
+        return mList.substring(mStart, mEnd);
+    }
+
+    /**
+     * Returns true if the comma separated lists have the same non-empty
+     * entries in the same order.
+     */
+    public static boolean sameList(String first, String second) {
+        final int firstLength = first == null ? 0 : first.length();
+        final int secondLength = second == null ? 0 : second.length();
+        int i = 0;
+        int j = 0;
+        while (true) {
+            i = skipSeparators(first, i, firstLength);
+            j = skipSeparators(second, j, secondLength);
+            if (i == firstLength || j == secondLength) {
+                return i == firstLength && j == secondLength;
+            }
+            final int firstEnd = entryEnd(first, i, firstLength);
+            final int secondEnd = entryEnd(second, j, secondLength);
+            final int length = firstEnd - i;
+            if (length != secondEnd - j || !first.regionMatches(i, second, j, length)) {
+                return false;
+            }
+            i = firstEnd;
+            j = secondEnd;
+        }
+    }
+
+    /**
+     * Folds the non-empty entries of a comma separated list into a hash, so
+     * that lists accepted by {@link #sameList} hash alike.
+     */
+    public static int hashList(int hash, String list) {
+        final int length = list == null ? 0 : list.length();
+        int i = skipSeparators(list, 0, length);
+        while (i < length) {
+            final char c = list.charAt(i);
+            if (c == ',') {
+                i = skipSeparators(list, i, length);
+                if (i < length) {
+                    hash = 31 * hash + ',';
+                }
+                continue;
+            }
+            hash = 31 * hash + c;
+            i++;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns true if the list has no empty entries, which is what
+     * {@link SimRecord#normalizeList} would produce.
+     */
+    static boolean isNormalized(String list) {
+        final int length = list.length();
+        if (length == 0 || list.charAt(0) == ',' || list.charAt(length - 1) == ',') {
+            return false;
+        }
+        return list.indexOf(",,") < 0;
+    }
+
+    private static int skipSeparators(String list, int position, int length) {
+        while (position < length && list.charAt(position) == ',') {
+            position++;
+        }
+        return position;
+    }
+
+    private static int entryEnd(String list, int position, int length) {
+        final int end = list.indexOf(',', position);
+        return end < 0 ? length : end;
+    }
+}
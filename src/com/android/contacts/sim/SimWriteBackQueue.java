@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.sim;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Queues ADN edits for one subscription and writes them to the ICC on a
+ * background thread.
+ *
+ * The ICC provider identifies a record by its content, so an edit that
+ * targets the content left by a still queued edit is merged into it: an
+ * update of a queued insert becomes a single insert, two updates become one,
+ * and an insert followed by a delete never reaches the modem. Each caller
+ * gets a {@link Future} with the number of records written, which completes
+ * when the merged edit has been applied.
+ */
+public class SimWriteBackQueue {
+    private static final String TAG = "SimWriteBackQueue";
+    private static final boolean DBG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static final int INSERT = 0;
+    private static final int UPDATE = 1;
+    private static final int DELETE = 2;
+
+    private static final SimWriteBackQueue[] sQueues =
+            new SimWriteBackQueue[SimContactsConstants.SUB_2 + 1];
+
+    /**
+     * Result of a queued edit. Canceling withdraws the edit as long as it is
+     * still queued; an edit that others were merged into is still written
+     * for them.
+     */
+    public class WriteFuture implements Future<Integer> {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile int mResult;
+        private volatile boolean mCancelled;
+        Edit mEdit;
+
+        void complete(int result) {
+            mResult = result;
+            mDone.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!withdraw(this)) {
+                return false;
+            }
+            mCancelled = true;
+            mDone.countDown();
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public Integer get() throws InterruptedException, ExecutionException {
+            mDone.await();
+            return getResult();
+        }
+
+        @Override
+        public Integer get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDone.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return getResult();
+        }
+
+        private Integer getResult() {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+            return mResult;
+        }
+    }
+
+    private static class Edit {
+        int kind;
+        SimRecord before;
+        SimRecord after;
+        String pin2;
+        final ArrayList<WriteFuture> futures = new ArrayList<WriteFuture>(1);
+
+        Edit(int kind, SimRecord before, SimRecord after, String pin2) {
+            this.kind = kind;
+            this.before = before;
+            this.after = after;
+            this.pin2 = pin2;
+        }
+
+        void complete(int result) {
+            for (WriteFuture future : futures) {
+                future.mEdit = null;
+                future.complete(result);
+            }
+        }
+    }
+
+    private final SimContactsOperation mOperation;
+    private final int mSubscription;
+    private final ArrayList<Edit> mPending = new ArrayList<Edit>();
+    private final ThreadPoolExecutor mExecutor;
+    private boolean mActive;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                final Edit edit;
+                synchronized (SimWriteBackQueue.this) {
+                    if (mPending.isEmpty()) {
+                        mActive = false;
+                        return;
+                    }
+                    edit = mPending.remove(0);
+                }
+                int result = 0;
+                try {
+                    result = apply(edit);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                }
+                edit.complete(result);
+            }
+        }
+    };
+
+    public static synchronized SimWriteBackQueue getInstance(Context context, int subscription) {
+        if (subscription < 0 || subscription >= sQueues.length) {
+            throw new IllegalArgumentException("invalid subscription " + subscription);
+        }
+        if (sQueues[subscription] == null) {
+            sQueues[subscription] = new SimWriteBackQueue(
+                    new SimContactsOperation(context.getApplicationContext()), subscription);
+        }
+        return sQueues[subscription];
+    }
+
+    private SimWriteBackQueue(SimContactsOperation operation, final int subscription) {
+        mOperation = operation;
+        mSubscription = subscription;
+        mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "SimWriteBack #" + subscription);
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Queues an insert; the values use the keys of {@link SimContactsOperation#insert}. */
+    public Future<Integer> insert(ContentValues values) {
+        return enqueue(new Edit(INSERT, null, SimContactsOperation.toSimRecord(values, false),
+                getPin2(values)));
+    }
+
+    /** Queues an update; the values use the keys of {@link SimContactsOperation#update}. */
+    public Future<Integer> update(ContentValues values) {
+        return enqueue(new Edit(UPDATE, SimContactsOperation.toSimRecord(values, false),
+                SimContactsOperation.toSimRecord(values, true), getPin2(values)));
+    }
+
+    /** Queues a delete; the values use the keys of {@link SimContactsOperation#delete}. */
+    public Future<Integer> delete(ContentValues values) {
+        return enqueue(new Edit(DELETE, SimContactsOperation.toSimRecord(values, false), null,
+                getPin2(values)));
+    }
+
+    private synchronized Future<Integer> enqueue(Edit edit) {
+        final WriteFuture future = new WriteFuture();
+        final Edit target = edit.kind == INSERT ? null : findTarget(edit.before);
+        if (target == null) {
+            edit.futures.add(future);
+            future.mEdit = edit;
+            mPending.add(edit);
+        } else {
+            target.futures.add(future);
+            future.mEdit = target;
+            if (edit.pin2 != null) {
+                target.pin2 = edit.pin2;
+            }
+            merge(target, edit);
+        }
+        if (!mActive && !mPending.isEmpty()) {
+            mActive = true;
+            mExecutor.execute(mDrain);
+        }
+        return future;
+    }
+
+    private synchronized boolean withdraw(WriteFuture future) {
+        final Edit edit = future.mEdit;
+        if (edit == null || !mPending.contains(edit)) {
+            return false;
+        }
+        edit.futures.remove(future);
+        future.mEdit = null;
+        if (edit.futures.isEmpty()) {
+            log("withdraw queued edit at sub " + mSubscription);
+            mPending.remove(edit);
+        }
+        return true;
+    }
+
+    /** Returns the last queued edit that leaves the given content on the SIM. */
+    private Edit findTarget(SimRecord content) {
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            final Edit edit = mPending.get(i);
+            if (edit.after != null && edit.after.equals(content)) {
+                return edit;
+            }
+        }
+        return null;
+    }
+
+    private void merge(Edit target, Edit edit) {
+        if (edit.kind == UPDATE) {
+            target.after = edit.after;
+            if (target.kind == UPDATE && target.before.equals(target.after)) {
+                log("update reverted before it was written at sub " + mSubscription);
+                mPending.remove(target);
+                target.complete(1);
+            }
+        } else if (target.kind == INSERT) {
+            log("insert deleted before it was written at sub " + mSubscription);
+            mPending.remove(target);
+            target.complete(1);
+        } else {
+            target.kind = DELETE;
+            target.after = null;
+        }
+    }
+
+    private int apply(Edit edit) {
+        final ContentValues values = new ContentValues();
+        if (edit.pin2 != null) {
+            values.put(SimContactsConstants.STR_PIN2, edit.pin2);
+        }
+        switch (edit.kind) {
+            case INSERT:
+                putRecord(values, edit.after, false);
+                final Uri uri = mOperation.insert(values, mSubscription);
+                return uri != null ? 1 : 0;
+            case UPDATE:
+                putRecord(values, edit.before, false);
+                putRecord(values, edit.after, true);
+                return mOperation.update(values, mSubscription);
+            default:
+                putRecord(values, edit.before, false);
+                return mOperation.delete(values, mSubscription);
+        }
+    }
+
+    private static void putRecord(ContentValues values, SimRecord record, boolean newValues) {
+        values.put(newValues ? SimContactsConstants.STR_NEW_TAG
+                : SimContactsConstants.STR_TAG, record.name);
+        values.put(newValues ? SimContactsConstants.STR_NEW_NUMBER
+                : SimContactsConstants.STR_NUMBER, record.number);
+        values.put(newValues ? SimContactsConstants.STR_NEW_EMAILS
+                : SimContactsConstants.STR_EMAILS, record.emails);
+        values.put(newValues ? SimContactsConstants.STR_NEW_ANRS
+                : SimContactsConstants.STR_ANRS, record.anrs);
+    }
+
+    private static String getPin2(ContentValues values) {
+        return values.getAsString(SimContactsConstants.STR_PIN2);
+    }
+
+    private static void log(String msg) {
+        if (DBG) Log.d(TAG, msg);
+    }
+}
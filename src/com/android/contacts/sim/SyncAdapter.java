@@ -31,13 +31,91 @@ package com.android.contacts.sim;
 import android.accounts.Account;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.SyncResult;
+import android.database.Cursor;
 import android.os.Bundle;
+import android.os.RemoteException;
+import android.provider.ContactsContract.RawContacts;
+import android.telephony.TelephonyManager;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Uploads the phone-side edits of SIM contacts to the card.
+ *
+ * Only raw contacts flagged {@link RawContacts#DIRTY} are read, so a pass
+ * costs as much as the number of edits, not the size of the phonebook. The
+ * SIM content an edit replaces comes from the {@link SimSnapshotStore}
+ * record in the slot named by {@link RawContacts#SOURCE_ID}. The card does
+ * not report the slot of an inserted record, so until the next SIM sync
+ * pass tags it, the record is found by the checksum in
+ * {@link RawContacts#SYNC1} among the snapshot records without a slot.
+ * All edits are queued on the {@link SimWriteBackQueue} of the subscription
+ * before any of them is waited for, so repeated edits of one record are
+ * written once.
+ *
+ * The card stays the source of truth: an edit the card refuses is not
+ * retried, its raw contact is just untagged so that the next SIM sync pass
+ * restores the card content.
+ */
 public class SyncAdapter  extends AbstractThreadedSyncAdapter{
     private static final String TAG = "SyncAdapter";
+    private static final boolean DBG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final int MAX_OPERATIONS_PER_BATCH = 200;
+
+    private static final String[] DIRTY_PROJECTION = new String[] {
+        RawContacts._ID,
+        RawContacts.DELETED,
+        RawContacts.SOURCE_ID,
+        RawContacts.VERSION,
+        RawContacts.SYNC1,
+    };
+
+    private static final int DIRTY_ID_COLUMN = 0;
+    private static final int DIRTY_DELETED_COLUMN = 1;
+    private static final int DIRTY_SOURCE_ID_COLUMN = 2;
+    private static final int DIRTY_VERSION_COLUMN = 3;
+    private static final int DIRTY_SYNC1_COLUMN = 4;
+
+    private static final String DIRTY_SELECTION = RawContacts.ACCOUNT_TYPE + "=? AND "
+            + RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.DIRTY + "=1";
+
+    private static final int INSERT = 0;
+    private static final int UPDATE = 1;
+    private static final int DELETE = 2;
+
+    private static class Upload {
+        final long rawContactId;
+        final int version;
+        final int kind;
+        // Position of the record in the snapshot, or -1 for an insert.
+        final int position;
+        final SimRecord before;
+        final SimRecord after;
+        Future<Integer> future;
+        int result;
+
+        Upload(long rawContactId, int version, int kind, int position, SimRecord before,
+                SimRecord after) {
+            this.rawContactId = rawContactId;
+            this.version = version;
+            this.kind = kind;
+            this.position = position;
+            this.before = before;
+            this.after = after;
+        }
+    }
 
     public SyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
@@ -47,6 +125,285 @@ public class SyncAdapter  extends AbstractThreadedSyncAdapter{
     public void onPerformSync(Account account, Bundle extras, String authority,
             ContentProviderClient provider, SyncResult syncResult) {
         Log.d(TAG, "onPerformSync");
+        final int subscription = getSubscription(account);
+        if (subscription < 0) {
+            return;
+        }
+        if (TelephonyManager.getDefault().getSimState(subscription)
+                != TelephonyManager.SIM_STATE_READY) {
+            log("sim not ready at sub " + subscription + ", retry later");
+            syncResult.stats.numIoExceptions++;
+            return;
+        }
+        final ContentResolver resolver = getContext().getContentResolver();
+        final ArrayList<Upload> uploads = new ArrayList<Upload>();
+        final ArrayList<Long> dropped = new ArrayList<Long>();
+        final ArrayList<Integer> droppedVersions = new ArrayList<Integer>();
+        final ArrayList<Long> deleted = new ArrayList<Long>();
+
+        final SimSnapshotStore store = new SimSnapshotStore(getContext());
+        final SimSnapshotStore.Snapshot snapshot = store.read(subscription);
+        if (snapshot != null && !snapshot.cardId.equals(
+                TelephonyManager.getDefault().getSubscriberId(subscription))) {
+            // Another card is in the slot and the SIM pass has not read it
+            // yet; the snapshot would address records of the previous card.
+            log("snapshot of another card at sub " + subscription + ", retry later");
+            syncResult.stats.numIoExceptions++;
+            return;
+        }
+        // Records are addressed by their position, so a removed record is
+        // set to null until the snapshot is written back.
+        final ArrayList<SimRecord> records = snapshot != null
+                ? new ArrayList<SimRecord>(snapshot.records) : new ArrayList<SimRecord>();
+        final HashMap<Integer, Integer> positionByIndex = new HashMap<Integer, Integer>();
+        final HashMap<String, Integer> positionByChecksum = new HashMap<String, Integer>();
+        for (int i = 0; i < records.size(); i++) {
+            final SimRecord record = records.get(i);
+            if (record.index >= 0) {
+                positionByIndex.put(record.index, i);
+            } else {
+                positionByChecksum.put(record.getChecksum(), i);
+            }
+        }
+        final boolean[] claimed = new boolean[records.size()];
+
+        final Cursor cursor = resolver.query(RawContacts.CONTENT_URI, DIRTY_PROJECTION,
+                DIRTY_SELECTION, new String[] { account.type, account.name }, null);
+        if (cursor == null) {
+            syncResult.databaseError = true;
+            return;
+        }
+        final ArrayList<Long> changedIds = new ArrayList<Long>();
+        try {
+            log("onPerformSync: " + cursor.getCount() + " dirty contacts at sub "
+                    + subscription);
+            if (cursor.getCount() == 0) {
+                return;
+            }
+            while (cursor.moveToNext()) {
+                final long rawContactId = cursor.getLong(DIRTY_ID_COLUMN);
+                final int version = cursor.getInt(DIRTY_VERSION_COLUMN);
+                final int index = SimRecord.parseIndex(cursor.getString(DIRTY_SOURCE_ID_COLUMN));
+                final String checksum = cursor.getString(DIRTY_SYNC1_COLUMN);
+                Integer position = index >= 0 ? positionByIndex.get(index)
+                        : positionByChecksum.get(checksum);
+                if (position != null && claimed[position]) {
+                    position = null;
+                }
+                final SimRecord before = position != null ? records.get(position) : null;
+                if (before != null) {
+                    claimed[position] = true;
+                }
+                if (cursor.getInt(DIRTY_DELETED_COLUMN) != 0) {
+                    deleted.add(rawContactId);
+                    if (before != null) {
+                        uploads.add(new Upload(rawContactId, version, DELETE, position,
+                                before, null));
+                    }
+                } else if (before != null) {
+                    uploads.add(new Upload(rawContactId, version, UPDATE, position,
+                            before, null));
+                    changedIds.add(rawContactId);
+                } else if (index < 0 && checksum == null) {
+                    uploads.add(new Upload(rawContactId, version, INSERT, -1, null, null));
+                    changedIds.add(rawContactId);
+                } else {
+                    // No snapshot of that record, so it cannot be addressed
+                    // on the card.
+                    dropped.add(rawContactId);
+                    droppedVersions.add(version);
+                    syncResult.stats.numSkippedEntries++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        final long[] ids = new long[changedIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = changedIds.get(i);
+        }
+        final HashMap<Long, SimRecord> stored = ids.length == 0 ? new HashMap<Long, SimRecord>()
+                : SimContactsOperation.loadSimAccountRecords(resolver, account.name, ids);
+
+        final SimWriteBackQueue queue = SimWriteBackQueue.getInstance(getContext(), subscription);
+        for (int i = 0; i < uploads.size(); i++) {
+            Upload upload = uploads.get(i);
+            if (upload.kind != DELETE) {
+                final SimRecord after = stored.get(upload.rawContactId);
+                if (after == null) {
+                    continue;
+                }
+                upload = new Upload(upload.rawContactId, upload.version, upload.kind,
+                        upload.position, upload.before, new SimRecord(upload.before != null
+                                ? upload.before.index : -1, after.name, after.number,
+                                after.emails, after.anrs));
+                uploads.set(i, upload);
+            }
+            upload.future = enqueue(queue, upload);
+        }
+
+        for (Upload upload : uploads) {
+            if (upload.future == null) {
+                continue;
+            }
+            try {
+                final Integer result = upload.future.get();
+                upload.result = result != null ? result : 0;
+            } catch (InterruptedException e) {
+                log("onPerformSync canceled at sub " + subscription);
+                for (Upload pending : uploads) {
+                    if (pending.future != null) {
+                        pending.future.cancel(false);
+                    }
+                }
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            }
+        }
+
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        boolean snapshotChanged = false;
+        for (Upload upload : uploads) {
+            if (upload.kind == DELETE) {
+                if (upload.result > 0) {
+                    syncResult.stats.numDeletes++;
+                    records.set(upload.position, null);
+                    snapshotChanged = true;
+                } else {
+                    syncResult.stats.numSkippedEntries++;
+                }
+                continue;
+            }
+            if (upload.future == null || upload.result <= 0) {
+                syncResult.stats.numSkippedEntries++;
+                operations.add(buildClearDirty(upload.rawContactId, upload.version)
+                        .withValue(RawContacts.SYNC1, null).build());
+            } else if (upload.kind == INSERT) {
+                // The card does not report the slot it used; the record is
+                // kept without one until the next SIM sync pass matches it
+                // by content and tags it.
+                syncResult.stats.numInserts++;
+                records.add(upload.after);
+                snapshotChanged = true;
+                operations.add(buildClearDirty(upload.rawContactId, upload.version)
+                        .withValue(RawContacts.SYNC1, upload.after.getChecksum()).build());
+            } else {
+                syncResult.stats.numUpdates++;
+                records.set(upload.position, upload.after);
+                snapshotChanged = true;
+                operations.add(buildClearDirty(upload.rawContactId, upload.version)
+                        .withValue(RawContacts.SYNC1, upload.after.getChecksum()).build());
+            }
+        }
+        for (int i = 0; i < dropped.size(); i++) {
+            operations.add(buildClearDirty(dropped.get(i), droppedVersions.get(i))
+                    .withValue(RawContacts.SYNC1, null).build());
+        }
+        if (!deleted.isEmpty()) {
+            // Deleted locally: the raw contacts go away whatever the card said.
+            final StringBuilder selection = new StringBuilder(RawContacts._ID).append(" IN (");
+            for (int i = 0; i < deleted.size(); i++) {
+                if (i > 0) {
+                    selection.append(',');
+                }
+                selection.append(deleted.get(i));
+            }
+            selection.append(") AND ").append(RawContacts.DELETED).append("=1");
+            operations.add(ContentProviderOperation.newDelete(
+                    SimContactsService.RAW_CONTACTS_SYNC_ADAPTER_URI)
+                    .withSelection(selection.toString(), null).build());
+        }
+        applyBatches(resolver, operations, syncResult);
+
+        if (snapshotChanged && snapshot != null) {
+            final ArrayList<SimRecord> remaining = new ArrayList<SimRecord>(records.size());
+            for (SimRecord record : records) {
+                if (record != null) {
+                    remaining.add(record);
+                }
+            }
+            store.write(subscription, snapshot.cardId, remaining);
+        }
+        syncResult.stats.numEntries += uploads.size() + dropped.size();
+        log("onPerformSync done at sub " + subscription + ": " + syncResult.stats);
     }
 
+    private Future<Integer> enqueue(SimWriteBackQueue queue, Upload upload) {
+        final ContentValues values = new ContentValues();
+        final SimRecord current = upload.kind == INSERT ? upload.after : upload.before;
+        values.put(SimContactsConstants.STR_TAG, current.name);
+        values.put(SimContactsConstants.STR_NUMBER, current.number);
+        values.put(SimContactsConstants.STR_EMAILS, current.emails);
+        values.put(SimContactsConstants.STR_ANRS, current.anrs);
+        switch (upload.kind) {
+            case INSERT:
+                return queue.insert(values);
+            case UPDATE:
+                values.put(SimContactsConstants.STR_NEW_TAG, upload.after.name);
+                values.put(SimContactsConstants.STR_NEW_NUMBER, upload.after.number);
+                values.put(SimContactsConstants.STR_NEW_EMAILS, upload.after.emails);
+                values.put(SimContactsConstants.STR_NEW_ANRS, upload.after.anrs);
+                return queue.update(values);
+            default:
+                return queue.delete(values);
+        }
+    }
+
+    /**
+     * Clears the dirty flag, unless the raw contact was edited again since
+     * it was read; that edit is then left for the next pass.
+     */
+    private static ContentProviderOperation.Builder buildClearDirty(long rawContactId,
+            int version) {
+        return ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                SimContactsService.RAW_CONTACTS_SYNC_ADAPTER_URI, rawContactId))
+                .withSelection(RawContacts.VERSION + "=?",
+                        new String[] { String.valueOf(version) })
+                .withValue(RawContacts.DIRTY, 0)
+                .withYieldAllowed(true);
+    }
+
+    private static void applyBatches(ContentResolver resolver,
+            ArrayList<ContentProviderOperation> operations, SyncResult syncResult) {
+        int start = 0;
+        while (start < operations.size()) {
+            final int end = Math.min(operations.size(),
+                    start + ProviderWriteGate.getOperationLimit(MAX_OPERATIONS_PER_BATCH));
+            try {
+                ProviderWriteGate.applyBatch(resolver, new ArrayList<ContentProviderOperation>(
+                        operations.subList(start, end)));
+            } catch (RemoteException e) {
+                Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                syncResult.databaseError = true;
+                return;
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                syncResult.databaseError = true;
+                return;
+            }
+            start = end;
+        }
+    }
+
+    private static int getSubscription(Account account) {
+        if (!SimContactsConstants.ACCOUNT_TYPE_SIM.equals(account.type)) {
+            return -1;
+        }
+        if (SimContactsConstants.SIM_NAME.equals(account.name)
+                || SimContactsConstants.SIM_NAME_1.equals(account.name)) {
+            return SimContactsConstants.SUB_1;
+        }
+        if (SimContactsConstants.SIM_NAME_2.equals(account.name)) {
+            return SimContactsConstants.SUB_2;
+        }
+        return -1;
+    }
+
+    private static void log(String msg) {
+        if (DBG) Log.d(TAG, msg);
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.sim;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.telephony.SubscriptionManager;
+import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+/**
+ * Caches the telephony layout the SIM contacts code keeps asking for: the
+ * multi-SIM mode, the phone count, and for each slot its subscription id and
+ * parsed ADN uri.
+ *
+ * The values are read once and dropped whenever the subscriptions change,
+ * so a SIM operation no longer costs a telephony binder call and a
+ * {@link Uri#parse} each time.
+ */
+public class TelephonyTopology {
+    private static final String TAG = "TelephonyTopology";
+    private static final boolean DBG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final int SLOT_COUNT = SimContactsConstants.SUB_2 + 1;
+
+    private static TelephonyTopology sInstance;
+
+    private static final class Snapshot {
+        final boolean multiSim;
+        final int phoneCount;
+        final int[] subIds = new int[SLOT_COUNT];
+        final Uri[] iccUris = new Uri[SLOT_COUNT];
+
+        Snapshot() {
+            final TelephonyManager telephonyManager = TelephonyManager.getDefault();
+            multiSim = telephonyManager.isMultiSimEnabled();
+            phoneCount = telephonyManager.getPhoneCount();
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                final int[] subId = SubscriptionManager.getSubId(slot);
+                subIds[slot] = subId != null && subId.length > 0 ? subId[0] : -1;
+                iccUris[slot] = multiSim && subIds[slot] != -1
+                        ? SimContactsOperation.parseIccUri(
+                                SimContactsConstants.SIM_SUB_URI + subIds[slot])
+                        : SimContactsOperation.parseIccUri(SimContactsConstants.SIM_URI);
+            }
+        }
+    }
+
+    private volatile Snapshot mSnapshot;
+
+    public static synchronized TelephonyTopology getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TelephonyTopology(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private TelephonyTopology(final Context context) {
+        // The listener binds to the looper of the thread that creates it.
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                SubscriptionManager.from(context).addOnSubscriptionsChangedListener(
+                        new OnSubscriptionsChangedListener() {
+                            @Override
+                            public void onSubscriptionsChanged() {
+                                log("subscriptions changed");
+                                mSnapshot = null;
+                            }
+                        });
+            }
+        });
+    }
+
+    public boolean isMultiSimEnabled() {
+        return get().multiSim;
+    }
+
+    public int getPhoneCount() {
+        return get().phoneCount;
+    }
+
+    /** Returns the subscription id of a slot, or -1 if it has none. */
+    public int getSubId(int slot) {
+        return isValidSlot(slot) ? get().subIds[slot] : -1;
+    }
+
+    /** Returns the ADN uri of a slot, or null for an unknown slot. */
+    public Uri getIccUri(int slot) {
+        return isValidSlot(slot) ? get().iccUris[slot] : null;
+    }
+
+    /** Drops the cached state; the next call reads it again. */
+    void invalidate() {
+        mSnapshot = null;
+    }
+
+    private Snapshot get() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            snapshot = new Snapshot();
+            mSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    private static boolean isValidSlot(int slot) {
+        return slot >= 0 && slot < SLOT_COUNT;
+    }
+
+    private static void log(String msg) {
+        if (DBG) Log.d(TAG, msg);
+    }
+}
@@ -0,0 +1,17 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+# We only want this apk build for tests.
+LOCAL_MODULE_TAGS := tests
+LOCAL_CERTIFICATE := shared
+
+LOCAL_JAVA_LIBRARIES := android.test.runner telephony-common
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+LOCAL_ASSET_DIR := $(LOCAL_PATH)/assets
+
+LOCAL_PACKAGE_NAME := SimContactsTests
+
+LOCAL_INSTRUMENTATION_FOR := Contacts
+
+include $(BUILD_PACKAGE)
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.contacts.sim;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stand-in for the platform {@code content://icc/adn} provider.
+ *
+ * It serves {@code adn} and {@code adn/subId/<n>} with the columns and the
+ * insert, update and delete keys of the real IccProvider, so the contacts
+ * app can be pointed at it with
+ * {@code setprop debug.simcontacts.icc_authority com.android.contacts.sim.tests.icc}.
+ *
+ * Tests set it up through {@link android.content.ContentResolver#call},
+ * because the provider runs in the process of the test package:
+ * <ul>
+ * <li>{@link #METHOD_GENERATE} fills a phonebook with {@link #EXTRA_SIZE}
+ * generated records, a {@link #EXTRA_DENSITY} share of them with ANRs and
+ * emails</li>
+ * <li>{@link #METHOD_LOAD} reads a recorded phonebook from the assets, one
+ * tab-separated name, number, emails and anrs line per record</li>
+ * <li>{@link #METHOD_CONFIGURE} sets the {@link #EXTRA_QUERY_DELAY_MS} and
+ * {@link #EXTRA_WRITE_DELAY_MS} latencies and the {@link #EXTRA_FAIL_QUERIES}
+ * and {@link #EXTRA_FAIL_WRITES} failures</li>
+ * <li>{@link #METHOD_STATS} returns the query and write counts</li>
+ * </ul>
+ * Each call takes an optional {@link #EXTRA_SUB_ID}; the plain {@code adn}
+ * uri uses the phonebook of subscription -1.
+ */
+public class FakeIccProvider extends ContentProvider {
+    private static final String TAG = "FakeIccProvider";
+
+    public static final String AUTHORITY = "com.android.contacts.sim.tests.icc";
+
+    public static final String METHOD_GENERATE = "generate";
+    public static final String METHOD_LOAD = "load";
+    public static final String METHOD_CONFIGURE = "configure";
+    public static final String METHOD_STATS = "stats";
+
+    public static final String EXTRA_SUB_ID = "sub_id";
+    public static final String EXTRA_SIZE = "size";
+    public static final String EXTRA_DENSITY = "density";
+    public static final String EXTRA_SEED = "seed";
+    public static final String EXTRA_QUERY_DELAY_MS = "query_delay_ms";
+    public static final String EXTRA_WRITE_DELAY_MS = "write_delay_ms";
+    public static final String EXTRA_FAIL_QUERIES = "fail_queries";
+    public static final String EXTRA_FAIL_WRITES = "fail_writes";
+    public static final String EXTRA_QUERIES = "queries";
+    public static final String EXTRA_WRITES = "writes";
+
+    private static final String[] COLUMN_NAMES = new String[] {
+        "name",
+        "number",
+        "emails",
+        "anrs",
+        "_id"
+    };
+
+    private static final int ADN = 1;
+    private static final int ADN_SUB = 2;
+
+    private static final int DEFAULT_SUB_ID = -1;
+
+    private static final Pattern SELECTION_TERM = Pattern.compile("(\\w+)='([^']*)'");
+
+    private static final UriMatcher sMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+    static {
+        sMatcher.addURI(AUTHORITY, "adn", ADN);
+        sMatcher.addURI(AUTHORITY, "adn/subId/#", ADN_SUB);
+    }
+
+    private static class Record {
+        final int index;
+        String name;
+        String number;
+        String emails;
+        String anrs;
+
+        Record(int index, String name, String number, String emails, String anrs) {
+            this.index = index;
+            this.name = name;
+            this.number = number;
+            this.emails = emails;
+            this.anrs = anrs;
+        }
+
+        boolean matches(String name, String number, String emails, String anrs) {
+            return same(this.name, name) && same(this.number, number)
+                    && (emails == null || same(this.emails, emails))
+                    && (anrs == null || same(this.anrs, anrs));
+        }
+    }
+
+    private static class Phonebook {
+        final ArrayList<Record> records = new ArrayList<Record>();
+        long queryDelayMs;
+        long writeDelayMs;
+        boolean failQueries;
+        boolean failWrites;
+        int queries;
+        int writes;
+        int nextIndex = 1;
+
+        void add(String name, String number, String emails, String anrs) {
+            records.add(new Record(nextIndex++, name, number, emails, anrs));
+        }
+
+        Record find(String name, String number, String emails, String anrs) {
+            for (Record record : records) {
+                if (record.matches(name, number, emails, anrs)) {
+                    return record;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final SparseArray<Phonebook> mPhonebooks = new SparseArray<Phonebook>();
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        final Bundle args = extras != null ? extras : Bundle.EMPTY;
+        final int subId = args.getInt(EXTRA_SUB_ID, DEFAULT_SUB_ID);
+        synchronized (mPhonebooks) {
+            final Phonebook phonebook = getPhonebook(subId);
+            if (METHOD_GENERATE.equals(method)) {
+                phonebook.records.clear();
+                phonebook.nextIndex = 1;
+                generate(phonebook, args.getInt(EXTRA_SIZE), args.getDouble(EXTRA_DENSITY),
+                        args.getLong(EXTRA_SEED, 42));
+            } else if (METHOD_LOAD.equals(method)) {
+                phonebook.records.clear();
+                phonebook.nextIndex = 1;
+                load(phonebook, arg);
+            } else if (METHOD_CONFIGURE.equals(method)) {
+                phonebook.queryDelayMs = args.getLong(EXTRA_QUERY_DELAY_MS);
+                phonebook.writeDelayMs = args.getLong(EXTRA_WRITE_DELAY_MS);
+                phonebook.failQueries = args.getBoolean(EXTRA_FAIL_QUERIES);
+                phonebook.failWrites = args.getBoolean(EXTRA_FAIL_WRITES);
+                phonebook.queries = 0;
+                phonebook.writes = 0;
+            } else if (!METHOD_STATS.equals(method)) {
+                throw new IllegalArgumentException("unknown method " + method);
+            }
+            final Bundle result = new Bundle();
+            result.putInt(EXTRA_SIZE, phonebook.records.size());
+            result.putInt(EXTRA_QUERIES, phonebook.queries);
+            result.putInt(EXTRA_WRITES, phonebook.writes);
+            return result;
+        }
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        final long delay;
+        final MatrixCursor cursor;
+        synchronized (mPhonebooks) {
+            final Phonebook phonebook = getPhonebook(uri);
+            phonebook.queries++;
+            delay = phonebook.queryDelayMs;
+            if (phonebook.failQueries) {
+                cursor = null;
+            } else {
+                cursor = new MatrixCursor(COLUMN_NAMES, phonebook.records.size());
+                for (Record record : phonebook.records) {
+                    cursor.addRow(new Object[] {
+                        record.name, record.number, record.emails, record.anrs, record.index
+                    });
+                }
+            }
+        }
+        SystemClock.sleep(delay);
+        return cursor;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        final long delay;
+        Uri result = null;
+        synchronized (mPhonebooks) {
+            final Phonebook phonebook = getPhonebook(uri);
+            phonebook.writes++;
+            delay = phonebook.writeDelayMs;
+            if (!phonebook.failWrites) {
+                phonebook.add(values.getAsString("tag"), values.getAsString("number"),
+                        values.getAsString("emails"), values.getAsString("anrs"));
+                result = uri.buildUpon().appendPath(String.valueOf(phonebook.nextIndex - 1))
+                        .build();
+            }
+        }
+        SystemClock.sleep(delay);
+        return result;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        final long delay;
+        int result = 0;
+        synchronized (mPhonebooks) {
+            final Phonebook phonebook = getPhonebook(uri);
+            phonebook.writes++;
+            delay = phonebook.writeDelayMs;
+            final Record record = phonebook.failWrites ? null
+                    : phonebook.find(values.getAsString("tag"), values.getAsString("number"),
+                            values.getAsString("emails"), values.getAsString("anrs"));
+            if (record != null) {
+                record.name = values.getAsString("newTag");
+                record.number = values.getAsString("newNumber");
+                record.emails = values.getAsString("newEmails");
+                record.anrs = values.getAsString("newAnrs");
+                result = 1;
+            }
+        }
+        SystemClock.sleep(delay);
+        return result;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        final ContentValues terms = new ContentValues();
+        if (selection != null) {
+            final Matcher matcher = SELECTION_TERM.matcher(selection);
+            while (matcher.find()) {
+                terms.put(matcher.group(1), matcher.group(2));
+            }
+        }
+        final long delay;
+        int result = 0;
+        synchronized (mPhonebooks) {
+            final Phonebook phonebook = getPhonebook(uri);
+            phonebook.writes++;
+            delay = phonebook.writeDelayMs;
+            final Record record = phonebook.failWrites ? null
+                    : phonebook.find(terms.getAsString("tag"), terms.getAsString("number"),
+                            terms.getAsString("emails"), terms.getAsString("anrs"));
+            if (record != null) {
+                phonebook.records.remove(record);
+                result = 1;
+            }
+        }
+        SystemClock.sleep(delay);
+        return result;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    private Phonebook getPhonebook(Uri uri) {
+        switch (sMatcher.match(uri)) {
+            case ADN:
+                return getPhonebook(DEFAULT_SUB_ID);
+            case ADN_SUB:
+                return getPhonebook(Integer.parseInt(uri.getLastPathSegment()));
+            default:
+                throw new IllegalArgumentException("unknown uri " + uri);
+        }
+    }
+
+    private Phonebook getPhonebook(int subId) {
+        Phonebook phonebook = mPhonebooks.get(subId);
+        if (phonebook == null) {
+            phonebook = new Phonebook();
+            mPhonebooks.put(subId, phonebook);
+        }
+        return phonebook;
+    }
+
+    private static void generate(Phonebook phonebook, int size, double density, long seed) {
+        final Random random = new Random(seed);
+        for (int i = 0; i < size; i++) {
+            final boolean rich = random.nextDouble() < density;
+            phonebook.add("Contact " + i, number(random),
+                    rich ? "user" + i + "@example.com" : null,
+                    rich ? number(random) : null);
+        }
+    }
+
+    private void load(Phonebook phonebook, String asset) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(
+                    new InputStreamReader(getContext().getAssets().open(asset), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split("\t", -1);
+                phonebook.add(field(fields, 0), field(fields, 1), field(fields, 2),
+                        field(fields, 3));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static String field(String[] fields, int index) {
+        return index < fields.length && fields[index].length() > 0 ? fields[index] : null;
+    }
+
+    private static String number(Random random) {
+        final StringBuilder number = new StringBuilder("138");
+        for (int i = 0; i < 8; i++) {
+            number.append((char) ('0' + random.nextInt(10)));
+        }
+        return number.toString();
+    }
+
+    private static boolean same(String first, String second) {
+        return TextUtils.isEmpty(first) ? TextUtils.isEmpty(second) : first.equals(second);
+    }
+}
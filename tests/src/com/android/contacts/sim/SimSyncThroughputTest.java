@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2011-2012, Code Aurora Forum. All rights reserved.
+
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+     * Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+     * Redistributions in binary form must reproduce the above
+       copyright notice, this list of conditions and the following
+       disclaimer in the documentation and/or other materials provided
+       with the distribution.
+     * Neither the name of Code Aurora Forum, Inc. nor the names of its
+       contributors may be used to endorse or promote products derived
+       from this software without specific prior written permission.
+
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.contacts.sim;
+
+import android.accounts.Account;
+import android.app.UiAutomation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
+import android.telephony.TelephonyManager;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.internal.telephony.IccCardConstants;
+import com.android.internal.telephony.PhoneConstants;
+import com.android.internal.telephony.TelephonyIntents;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Runs the SimStateReceiver -> SimContactsService flow end to end against
+ * {@link FakeIccProvider} and reports, per phonebook size, the time from
+ * the ICC_LOADED broadcast until all SIM contacts are in the provider, and
+ * the contacts provider operations spent per record.
+ *
+ * Needs a debuggable build, where the icc authority can be redirected.
+ * The SIM contacts, the remembered IMSI and the snapshot of the card in
+ * the slot are saved in setUp and put back in tearDown.
+ * Results go to the instrumentation status and to the log:
+ * {@code adb shell am instrument -w -e class com.android.contacts.sim.SimSyncThroughputTest
+ * com.android.contacts.sim.tests/android.test.InstrumentationTestRunner}
+ */
+@LargeTest
+public class SimSyncThroughputTest extends InstrumentationTestCase {
+    private static final String TAG = "SimSyncThroughputTest";
+
+    private static final int SUB = SimContactsConstants.SUB_1;
+    private static final String PREF_IMSI = "imsi_sub1";
+    private static final int[] PHONEBOOK_SIZES = new int[] { 50, 250, 500 };
+    private static final double FIELD_DENSITY = 0.5;
+    private static final long QUERY_DELAY_MS = 300;
+    private static final long WRITE_DELAY_MS = 20;
+
+    // Longer than the debounce window of SimEventDispatcher.
+    private static final long DISPATCH_SETTLE_MS = 1000;
+    private static final long TIMEOUT_MS = 120 * 1000;
+    private static final long POLL_INTERVAL_MS = 50;
+
+    // Raw contact, name and number, plus one ANR and one email for the
+    // rich records; the aggregation sweep adds well under one more.
+    private static final double MAX_OPERATIONS_PER_RECORD = 3 + 2 * FIELD_DENSITY + 1;
+
+    // Writes as the sync adapter, so the deletes are not left as tombstones.
+    private static final Uri RAW_CONTACTS_SYNC_ADAPTER_URI = RawContacts.CONTENT_URI.buildUpon()
+            .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private SharedPreferences mPrefs;
+    private SimSnapshotStore mSnapshotStore;
+    private TelephonyTopology mTopology;
+    private Uri mIccUri;
+    private String[] mSelectionArgs;
+    private final SimSyncMetrics mMetrics = SimSyncMetrics.getInstance();
+
+    // What the device had before the test.
+    private HashMap<Long, SimRecord> mSavedRecords;
+    private SimSnapshotStore.Snapshot mSavedSnapshot;
+    private String mSavedImsi;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mResolver = mContext.getContentResolver();
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mSnapshotStore = new SimSnapshotStore(mContext);
+        shell("setprop debug.simcontacts.icc_authority " + FakeIccProvider.AUTHORITY);
+        mTopology = TelephonyTopology.getInstance(mContext);
+        mTopology.invalidate();
+        mIccUri = mTopology.getIccUri(SUB);
+        assertEquals(FakeIccProvider.AUTHORITY, mIccUri.getAuthority());
+        mSelectionArgs = new String[] {
+            SimContactsConstants.ACCOUNT_TYPE_SIM,
+            mTopology.isMultiSimEnabled() ? SimContactsConstants.SIM_NAME_1
+                    : SimContactsConstants.SIM_NAME,
+            "0"
+        };
+        mSavedRecords = SimContactsOperation.loadSimAccountRecords(mResolver, mSelectionArgs[1]);
+        mSavedSnapshot = mSnapshotStore.read(SUB);
+        mSavedImsi = mPrefs.getString(PREF_IMSI, null);
+        resetSimContacts();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        resetSimContacts();
+        // "icc" is the platform authority, the same as no override.
+        shell("setprop debug.simcontacts.icc_authority icc");
+        mTopology.invalidate();
+        restoreSimContacts();
+        super.tearDown();
+    }
+
+    public void testImportThroughput() throws Exception {
+        for (int size : PHONEBOOK_SIZES) {
+            if (size != PHONEBOOK_SIZES[0]) {
+                resetSimContacts();
+            }
+            generate(size);
+            configure(false);
+            final long operations = mMetrics.getCounter(SUB, SimSyncMetrics.COUNT_PROVIDER_OPS);
+            final long visibleMs = importAndWait(size);
+            final double perRecord = (double) (mMetrics.getCounter(SUB,
+                    SimSyncMetrics.COUNT_PROVIDER_OPS) - operations) / size;
+            report("import_" + size, visibleMs, perRecord);
+            assertTrue("provider operations per record: " + perRecord,
+                    perRecord <= MAX_OPERATIONS_PER_RECORD);
+        }
+    }
+
+    /**
+     * A refresh of an unchanged card must not write to either provider.
+     * Without a readable IMSI every pass counts as a new card, so the test
+     * needs a real card in the slot.
+     */
+    public void testUnchangedRefresh() throws Exception {
+        if (TelephonyManager.getDefault().getSubscriberId(SUB) == null) {
+            Log.w(TAG, "no IMSI at sub " + SUB + ", skip testUnchangedRefresh");
+            return;
+        }
+        final int size = 250;
+        generate(size);
+        configure(false);
+        importAndWait(size);
+
+        final long unchanged = mMetrics.getCounter(SUB, SimSyncMetrics.COUNT_UNCHANGED);
+        final long operations = mMetrics.getCounter(SUB, SimSyncMetrics.COUNT_PROVIDER_OPS);
+        final long start = SystemClock.elapsedRealtime();
+        // Merged into one ICC_LOADED command with the refresh flag set.
+        sendBroadcast(new Intent("android.intent.action.ACTION_SIM_REFRESH_UPDATE")
+                .putExtra(PhoneConstants.SUBSCRIPTION_KEY, SUB));
+        sendSimState(IccCardConstants.INTENT_VALUE_ICC_LOADED);
+        waitForCounter(SimSyncMetrics.COUNT_UNCHANGED, unchanged + size);
+        report("refresh_" + size, SystemClock.elapsedRealtime() - start, 0);
+
+        assertEquals(operations, mMetrics.getCounter(SUB, SimSyncMetrics.COUNT_PROVIDER_OPS));
+        assertEquals(0, call(FakeIccProvider.METHOD_STATS, null, new Bundle())
+                .getInt(FakeIccProvider.EXTRA_WRITES));
+        assertEquals(size, countSimContacts());
+    }
+
+    /** A null ADN cursor is counted as a failure and leaves the contacts alone. */
+    public void testNullCursor() throws Exception {
+        generate(50);
+        configure(true);
+        final long failures = mMetrics.getCounter(SUB, SimSyncMetrics.COUNT_FAILURES);
+        sendSimState(IccCardConstants.INTENT_VALUE_ICC_LOADED);
+        waitForCounter(SimSyncMetrics.COUNT_FAILURES, failures + 1);
+        assertEquals(0, countSimContacts());
+    }
+
+    public void testRecordedPhonebook() throws Exception {
+        final int size = call(FakeIccProvider.METHOD_LOAD, "recorded_phonebook.tsv",
+                new Bundle()).getInt(FakeIccProvider.EXTRA_SIZE);
+        assertTrue(size > 0);
+        configure(false);
+        report("recorded_" + size, importAndWait(size), 0);
+    }
+
+    /**
+     * Broadcasts ICC_LOADED and waits until the pass has imported the
+     * whole phonebook.
+     *
+     * @return the time until all contacts were in the provider
+     */
+    private long importAndWait(int size) throws InterruptedException {
+        final long inserted = mMetrics.getCounter(SUB, SimSyncMetrics.COUNT_INSERTED);
+        final long start = SystemClock.elapsedRealtime();
+        sendSimState(IccCardConstants.INTENT_VALUE_ICC_LOADED);
+        long visibleMs = -1;
+        while (visibleMs < 0) {
+            assertTrue("timed out waiting for " + size + " contacts",
+                    SystemClock.elapsedRealtime() - start < TIMEOUT_MS);
+            if (countSimContacts() >= size) {
+                visibleMs = SystemClock.elapsedRealtime() - start;
+            } else {
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+        }
+        // The pass records its counters after the aggregation sweep.
+        waitForCounter(SimSyncMetrics.COUNT_INSERTED, inserted + size);
+        assertEquals(size, countSimContacts());
+        return visibleMs;
+    }
+
+    private void waitForCounter(int counter, long value) throws InterruptedException {
+        final long start = SystemClock.elapsedRealtime();
+        while (mMetrics.getCounter(SUB, counter) < value) {
+            assertTrue("timed out waiting for counter " + counter,
+                    SystemClock.elapsedRealtime() - start < TIMEOUT_MS);
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Takes the card out and forgets it, so the next ICC_LOADED starts a
+     * full import of a new card.
+     */
+    private void resetSimContacts() throws InterruptedException {
+        sendSimState(IccCardConstants.INTENT_VALUE_ICC_ABSENT);
+        Thread.sleep(DISPATCH_SETTLE_MS);
+        mResolver.delete(RAW_CONTACTS_SYNC_ADAPTER_URI,
+                RawContacts.ACCOUNT_TYPE + "=? AND " + RawContacts.ACCOUNT_NAME + "=?",
+                new String[] { mSelectionArgs[0], mSelectionArgs[1] });
+        mSnapshotStore.delete(SUB);
+        mPrefs.edit().remove(PREF_IMSI).commit();
+    }
+
+    /**
+     * Puts back the contacts, IMSI and snapshot saved in setUp, so the next
+     * pass on the real card finds them as it left them.
+     */
+    private void restoreSimContacts() {
+        if (!mSavedRecords.isEmpty()) {
+            final SimContactsImporter importer = new SimContactsImporter(mResolver,
+                    new Account(mSelectionArgs[1], SimContactsConstants.ACCOUNT_TYPE_SIM));
+            for (SimRecord record : mSavedRecords.values()) {
+                importer.add(record);
+            }
+            importer.finish();
+        }
+        if (mSavedSnapshot != null) {
+            mSnapshotStore.write(SUB, mSavedSnapshot.cardId, mSavedSnapshot.records);
+        }
+        if (mSavedImsi != null) {
+            mPrefs.edit().putString(PREF_IMSI, mSavedImsi).commit();
+        }
+    }
+
+    private int countSimContacts() {
+        final Cursor cursor = mResolver.query(RawContacts.CONTENT_URI,
+                new String[] { RawContacts._ID }, SimContactsService.SIM_DATABASE_SELECTION,
+                mSelectionArgs, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void sendSimState(String state) {
+        sendBroadcast(new Intent(TelephonyIntents.ACTION_SIM_STATE_CHANGED)
+                .putExtra(IccCardConstants.INTENT_KEY_ICC_STATE, state)
+                .putExtra(PhoneConstants.SUBSCRIPTION_KEY, SUB));
+    }
+
+    /** The SIM broadcasts are protected, so the receiver is invoked directly. */
+    private void sendBroadcast(final Intent intent) {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                new SimStateReceiver().onReceive(mContext, intent);
+            }
+        });
+    }
+
+    private void generate(int size) {
+        final Bundle extras = new Bundle();
+        extras.putInt(FakeIccProvider.EXTRA_SIZE, size);
+        extras.putDouble(FakeIccProvider.EXTRA_DENSITY, FIELD_DENSITY);
+        call(FakeIccProvider.METHOD_GENERATE, null, extras);
+    }
+
+    private void configure(boolean failQueries) {
+        final Bundle extras = new Bundle();
+        extras.putLong(FakeIccProvider.EXTRA_QUERY_DELAY_MS, QUERY_DELAY_MS);
+        extras.putLong(FakeIccProvider.EXTRA_WRITE_DELAY_MS, WRITE_DELAY_MS);
+        extras.putBoolean(FakeIccProvider.EXTRA_FAIL_QUERIES, failQueries);
+        call(FakeIccProvider.METHOD_CONFIGURE, null, extras);
+    }
+
+    private Bundle call(String method, String arg, Bundle extras) {
+        final int subId = mTopology.isMultiSimEnabled() ? mTopology.getSubId(SUB) : -1;
+        extras.putInt(FakeIccProvider.EXTRA_SUB_ID, subId);
+        return mResolver.call(mIccUri, method, arg, extras);
+    }
+
+    private void report(String name, long latencyMs, double operationsPerRecord) {
+        Log.i(TAG, name + ": " + latencyMs + "ms, " + operationsPerRecord
+                + " provider operations per record");
+        final Bundle results = new Bundle();
+        results.putLong(name + "_latency_ms", latencyMs);
+        results.putDouble(name + "_operations_per_record", operationsPerRecord);
+        getInstrumentation().sendStatus(0, results);
+    }
+
+    private void shell(String command) throws IOException {
+        final UiAutomation automation = getInstrumentation().getUiAutomation();
+        final ParcelFileDescriptor output = automation.executeShellCommand(command);
+        final FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(output);
+        try {
+            final byte[] buffer = new byte[256];
+            while (in.read(buffer) != -1) {
+                // Drain until the command has finished.
+            }
+        } finally {
+            in.close();
+        }
+    }
+}